@@ -0,0 +1,117 @@
+package htjsw;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPrivateKey;
+import java.util.Random;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * shared benchmark data: a throwaway signing key pair (only ever used for benchmarks) and reproducible messages
+ * @author F. Krause
+ */
+final class Fixtures {
+
+    /**
+     * keystore resource holding the benchmark key pair, store and key password "benchmark"
+     */
+    private static final String KEYSTORE = "/benchmark.p12";
+
+    /**
+     * benchmark signing key
+     */
+    static final ECPrivateKey KEY;
+
+    /**
+     * self-signed certificate of the benchmark key
+     */
+    static final X509Certificate CERT;
+
+    static {
+        try (InputStream in = Fixtures.class.getResourceAsStream(KEYSTORE)) {
+            if (in == null) throw new IllegalStateException("Benchmark keystore missing");
+
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(in, "benchmark".toCharArray());
+            KEY = (ECPrivateKey) ks.getKey("benchmark", "benchmark".toCharArray());
+            CERT = (X509Certificate) ks.getCertificate("benchmark");
+
+        } catch (IOException | GeneralSecurityException e) {
+
+            throw new IllegalStateException("Unable to load benchmark keystore", e);
+        }
+    }
+
+    /**
+     * utility class
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * generates distinct random messages, the same for every run
+     * @param count number of messages
+     * @param size length of each message in bytes, at least 4 so they are distinct
+     * @return messages
+     */
+    static byte[][] messages(int count, int size) {
+
+        Random random = new Random(count * 31L + size);
+        byte[][] msgs = new byte[count][];
+        for (int i = 0; i < count; i++) {
+
+            msgs[i] = new byte[Math.max(size, 4)];
+            random.nextBytes(msgs[i]);
+            // the leading bytes hold the index, so equal random content cannot collide
+            msgs[i][0] = (byte) (i >>> 24);
+            msgs[i][1] = (byte) (i >>> 16);
+            msgs[i][2] = (byte) (i >>> 8);
+            msgs[i][3] = (byte) i;
+        }
+        return msgs;
+    }
+
+    /**
+     * creates a structure ready to sign with the benchmark key
+     * @return empty, initialised instance
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    static Merkle merkle() throws NoSuchAlgorithmException {
+
+        return new Merkle(KEY, CERT);
+    }
+
+    /**
+     * builds and signs a tree over the given messages
+     * @param msgs messages
+     * @return closed and signed instance
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    static Merkle signed(byte[][] msgs) throws NoSuchAlgorithmException {
+
+        Merkle merkle = merkle();
+        for (byte[] msg : msgs) merkle.add(msg);
+        merkle.closeAndSign();
+        return merkle;
+    }
+}
@@ -0,0 +1,142 @@
+package htjsw;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * benchmarks of the per message operations whose cost grows with the message (payload) size,
+ * on a small tree of {@link #MESSAGES} messages
+ * @author F. Krause
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageBenchmark {
+
+    /**
+     * number of messages in the tree
+     */
+    private static final int MESSAGES = 64;
+
+    /**
+     * message size in bytes
+     */
+    @Param({"32", "1024", "16384", "262144", "1048576"})
+    public int payload;
+
+    /**
+     * messages in order
+     */
+    private byte[][] msgs;
+
+    /**
+     * signed tree over msgs
+     */
+    private Merkle signed;
+
+    /**
+     * a JWS of one of the messages
+     */
+    private JWSObject jws;
+
+    /**
+     * verifier, kept so its certificate cache and per-thread instances are warm as in long running use
+     */
+    private HTJSWVerifier verifier;
+
+    /**
+     * open structure messages are added to, replaced every iteration so it does not grow without bounds
+     */
+    private Merkle open;
+
+    /**
+     * position of the message used by the next operation
+     */
+    private int next;
+
+    /**
+     * builds the signed tree once per payload size
+     * @throws Exception if the fixtures cannot be built
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        msgs = Fixtures.messages(MESSAGES, payload);
+        signed = Fixtures.signed(msgs);
+        jws = JWSObject.parse(HTJWSBuilder.genJWS(signed, msgs[0]).serialize());
+        verifier = new HTJSWVerifier();
+    }
+
+    /**
+     * starts a fresh open structure
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    @Setup(Level.Iteration)
+    public void reset() throws NoSuchAlgorithmException {
+
+        open = Fixtures.merkle();
+    }
+
+    /**
+     * picks the message for the next operation
+     * @return message contained in the tree
+     */
+    private byte[] nextMessage() {
+
+        next = (next + 1) % MESSAGES;
+        return msgs[next];
+    }
+
+    /**
+     * hashing and adding a single message
+     */
+    @Benchmark
+    public void add() {
+
+        open.add(nextMessage());
+    }
+
+    /**
+     * generating a single JWS, including the Base64URL encoding of the payload
+     * @return serialized JWS
+     * @throws ParseException if the JWS cannot be built
+     */
+    @Benchmark
+    public String genJWS() throws ParseException {
+
+        return HTJWSBuilder.genJWS(signed, nextMessage()).serialize();
+    }
+
+    /**
+     * verifying a single parsed JWS, including decoding and hashing the payload
+     * @return verification result
+     * @throws JOSEException if verification fails to run
+     */
+    @Benchmark
+    public boolean verify() throws JOSEException {
+
+        return verifier.verify(jws.getHeader(), jws.getSigningInput(), jws.getSignature());
+    }
+}
@@ -0,0 +1,83 @@
+package htjsw;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * benchmark of hashing two child nodes into their parent.
+ * {@link #nodeHash()} is the innermost operation of building trees and folding paths, hashing into a reused buffer,
+ * {@link #concatHash()} is the public convenience method, which looks up the digest and allocates the parent
+ * @author F. Krause
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NodeHashBenchmark {
+
+    /**
+     * child nodes
+     */
+    private final byte[] left = new byte[32], right = new byte[32];
+
+    /**
+     * parent node, reused
+     */
+    private final byte[] parent = new byte[32];
+
+    /**
+     * digest, looked up once like the tree builders do
+     */
+    private MessageDigest digest;
+
+    /**
+     * fills the child nodes
+     */
+    @Setup
+    public void setUp() {
+
+        new Random(42).nextBytes(left);
+        new Random(43).nextBytes(right);
+        digest = HashAlgorithm.SHA256.digest();
+    }
+
+    /**
+     * hashing two child nodes into a reused buffer
+     * @return parent node
+     */
+    @Benchmark
+    public byte[] nodeHash() {
+
+        Merkle.nodeHash(digest, left, 0, right, 0, parent, 0);
+        return parent;
+    }
+
+    /**
+     * hashing two child nodes into a new array
+     * @return parent node
+     */
+    @Benchmark
+    public byte[] concatHash() {
+
+        return Merkle.concatHash(left, right);
+    }
+}
@@ -0,0 +1,296 @@
+package htjsw;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * benchmarks of the operations whose cost grows with the tree, over trees of 2^4 to 2^22 leaves
+ * (every message adds its hash and a salt leaf, so the message counts are half that).
+ * the messages are 32 bytes long, see {@link MessageBenchmark} for the payload size
+ * @author F. Krause
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TreeBenchmark {
+
+    /**
+     * number of messages
+     */
+    @Param({"8", "64", "512", "4096", "32768", "262144", "2097152"})
+    public int messages;
+
+    /**
+     * messages in order
+     */
+    private byte[][] msgs;
+
+    /**
+     * messages as a collection, for the bulk methods
+     */
+    private List<byte[]> msgList;
+
+    /**
+     * signed tree over msgs
+     */
+    private Merkle signed;
+
+    /**
+     * JWS generator over the signed tree
+     */
+    private HTJWSBuilder.Batch batch;
+
+    /**
+     * serialized signed tree
+     */
+    private byte[] json;
+
+    /**
+     * a JWS of one of the messages
+     */
+    private JWSObject jws;
+
+    /**
+     * verifier, kept so its certificate cache and per-thread instances are warm as in long running use
+     */
+    private HTJSWVerifier verifier;
+
+    /**
+     * position of the message used by the single message benchmarks, cycles through the tree
+     */
+    private int next;
+
+    /**
+     * builds the signed tree and its derived data once per parameter combination
+     * @throws Exception if the fixtures cannot be built
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        msgs = Fixtures.messages(messages, 32);
+        msgList = Arrays.asList(msgs);
+        signed = Fixtures.signed(msgs);
+        batch = new HTJWSBuilder.Batch(signed);
+        json = serializeToBytes(signed);
+        jws = JWSObject.parse(HTJWSBuilder.genJWS(signed, msgs[messages / 2]).serialize());
+        verifier = new HTJSWVerifier();
+    }
+
+    /**
+     * picks the message for the next single message operation
+     * @return message contained in the tree
+     */
+    private byte[] nextMessage() {
+
+        next = (next + 7919) % messages;
+        return msgs[next];
+    }
+
+    /**
+     * adding all messages one by one
+     * @return filled, unsigned instance
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    @Benchmark
+    public Merkle add() throws NoSuchAlgorithmException {
+
+        Merkle merkle = Fixtures.merkle();
+        for (byte[] msg : msgs) merkle.add(msg);
+        return merkle;
+    }
+
+    /**
+     * adding all messages in one bulk call
+     * @return filled, unsigned instance
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    @Benchmark
+    public Merkle addAll() throws NoSuchAlgorithmException {
+
+        Merkle merkle = Fixtures.merkle();
+        merkle.addAll(msgList);
+        return merkle;
+    }
+
+    /**
+     * adding all messages in one bulk call, hashed in parallel
+     * @return filled, unsigned instance
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    @Benchmark
+    public Merkle addAllParallel() throws NoSuchAlgorithmException {
+
+        Merkle merkle = Fixtures.merkle();
+        merkle.addAllParallel(msgList);
+        return merkle;
+    }
+
+    /**
+     * adding all messages and building and signing the tree, the HashTree construction dominates above a few
+     * thousand messages, below that the single root signature does, see {@link #buildTree} for the construction alone
+     * @return signed instance
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     */
+    @Benchmark
+    public Merkle build() throws NoSuchAlgorithmException {
+
+        Merkle merkle = Fixtures.merkle();
+        merkle.addAll(msgList);
+        merkle.closeAndSign();
+        return merkle;
+    }
+
+    /**
+     * building the HashTree over leaves added beforehand, without adding or signing.
+     * the filled instance is prepared per invocation, which JMH times separately, so only the construction is measured
+     * (the per-invocation overhead makes the smallest trees less accurate)
+     * @param filled instance holding all messages
+     * @return built, unsigned instance
+     */
+    @Benchmark
+    public Merkle buildTree(Filled filled) {
+
+        filled.merkle.build(ForkJoinPool.commonPool());
+        return filled.merkle;
+    }
+
+    /**
+     * unsigned instance holding all messages, filled anew for every invocation of {@link #buildTree}
+     */
+    @State(Scope.Thread)
+    public static class Filled {
+
+        /**
+         * filled, unbuilt instance
+         */
+        private Merkle merkle;
+
+        /**
+         * adds all messages to a new instance
+         * @param tree benchmark state holding the messages
+         * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+         */
+        @Setup(Level.Invocation)
+        public void fill(TreeBenchmark tree) throws NoSuchAlgorithmException {
+
+            merkle = Fixtures.merkle();
+            merkle.addAll(tree.msgList);
+        }
+    }
+
+    /**
+     * looking up a message and collecting its path
+     * @return path
+     */
+    @Benchmark
+    public String[] getPath() {
+
+        return signed.getPath(nextMessage());
+    }
+
+    /**
+     * collecting the paths of all messages in one sweep
+     * @return all paths
+     */
+    @Benchmark
+    public String[][] getAllPaths() {
+
+        return signed.getAllPaths();
+    }
+
+    /**
+     * generating a single JWS
+     * @return serialized JWS
+     * @throws ParseException if the JWS cannot be built
+     */
+    @Benchmark
+    public String genJWS() throws ParseException {
+
+        return HTJWSBuilder.genJWS(signed, nextMessage()).serialize();
+    }
+
+    /**
+     * generating a single JWS from a prepared batch
+     * @return serialized JWS
+     * @throws ParseException if the JWS cannot be built
+     */
+    @Benchmark
+    public String batchGenJWS() throws ParseException {
+
+        return batch.genJWS(nextMessage()).serialize();
+    }
+
+    /**
+     * verifying a single parsed JWS
+     * @return verification result
+     * @throws JOSEException if verification fails to run
+     */
+    @Benchmark
+    public boolean verify() throws JOSEException {
+
+        return verifier.verify(jws.getHeader(), jws.getSigningInput(), jws.getSignature());
+    }
+
+    /**
+     * serializing the signed tree into JSON
+     * @return JSON bytes
+     * @throws IOException if serialization fails
+     */
+    @Benchmark
+    public byte[] serialize() throws IOException {
+
+        return serializeToBytes(signed);
+    }
+
+    /**
+     * reading the signed tree back from JSON
+     * @return closed instance
+     * @throws IOException if deserialization fails
+     */
+    @Benchmark
+    public Merkle fromJSON() throws IOException {
+
+        return Merkle.fromJSON(new ByteArrayInputStream(json));
+    }
+
+    /**
+     * serializes a signed tree into memory
+     * @param merkle signed tree
+     * @return JSON bytes
+     * @throws IOException if serialization fails
+     */
+    private static byte[] serializeToBytes(Merkle merkle) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        merkle.serialize(out);
+        return out.toByteArray();
+    }
+}
@@ -1,5 +1,6 @@
 package application;
 
+import htjsw.SignatureAlgorithm;
 import javafx.fxml.FXML;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
@@ -10,14 +11,15 @@ import javafx.util.Pair;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.ECPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Collections;
@@ -208,7 +210,7 @@ public class CertsController {
     }
 
     /**
-     * toggled by button press, shows dialogue for selecting certificate + key files (.der-Format) and entering alias
+     * toggled by button press, shows dialogue for selecting certificate + key files (.der-Format, EC or Ed25519) and entering alias
      */
     private void addkeypair() {
 
@@ -264,11 +266,13 @@ public class CertsController {
             }
 
             try {
-                PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(Files.readAllBytes(keyFile.toPath()));
-                ECPrivateKey eckey = (ECPrivateKey) KeyFactory.getInstance("EC").generatePrivate(spec);
-
                 X509Certificate eccert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new FileInputStream(certFile));
 
+                // EC and Ed25519 keys are supported, the certificate tells which one to parse
+                SignatureAlgorithm algorithm = SignatureAlgorithm.fromKey(eccert.getPublicKey());
+                PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(Files.readAllBytes(keyFile.toPath()));
+                PrivateKey eckey = KeyFactory.getInstance(algorithm.getKeyAlgorithm()).generatePrivate(spec);
+
                 ks.setKeyEntry(name, eckey, enternewPW(), new X509Certificate[]{eccert});
                 if (!keylist.getItems().contains(ks.getCertificateAlias(eccert))) keylist.getItems().add(ks.getCertificateAlias(eccert));
 
@@ -282,6 +286,11 @@ public class CertsController {
                 new Alert(Alert.AlertType.ERROR, "Failed to add: Invalid Key").showAndWait();
                 e.printStackTrace();
 
+            } catch (InvalidKeyException e) {
+
+                new Alert(Alert.AlertType.ERROR, "Failed to add: only EC and Ed25519 keys are supported").showAndWait();
+                e.printStackTrace();
+
             } catch (KeyStoreException e) {
 
                 new Alert(Alert.AlertType.ERROR, "Failed to save Keypair to Archive").showAndWait();
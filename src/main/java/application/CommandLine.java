@@ -0,0 +1,630 @@
+package application;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import htjsw.DirectorySigner;
+import htjsw.HTJSWVerifier;
+import htjsw.HTJWSBuilder;
+import htjsw.HashAlgorithm;
+import htjsw.Merkle;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * headless command line interface, used by {@link Launcher} whenever arguments are passed.
+ * every command walks a directory tree, works on a pool of threads and ends by printing
+ * a JSON summary with throughput and per-stage timings to standard output, everything else goes to standard error
+ * @author F. Krause
+ */
+public final class CommandLine {
+
+    /**
+     * usage text
+     */
+    static final String USAGE = """
+            usage:
+              hashtreesig sign <directory> <key alias> <tree file> [--unpadded] [--threads n] [--io-threads n] [--chunk-size bytes] [--hash name] [--keystore file]
+                  signs all files below the directory (read on io-threads, hashed on threads threads),
+                  files longer than the chunk size are split into chunks hashed in parallel,
+                  the hash function is one of SHA-256 (default), SHA-512/256 or SHA3-256,
+                  the tree is written in the binary format
+                  unless the tree file name ends with ".json"
+              hashtreesig generate <tree file> <directory> <output directory> [--threads n]
+                  writes a JWS for every file below the directory, mirroring the directory layout
+              hashtreesig verify <directory> [--threads n]
+                  verifies all ".jws" files below the directory
+            the keystore password is read from the console, or from the first line of standard input
+            exit status: 0 on success, 1 if a file failed, 2 on invalid arguments
+            """;
+
+    /**
+     * exit status for runs in which all files were processed
+     */
+    static final int EXIT_OK = 0;
+
+    /**
+     * exit status for runs in which a file could not be processed or failed verification
+     */
+    static final int EXIT_FAILED = 1;
+
+    /**
+     * exit status for invalid arguments
+     */
+    static final int EXIT_USAGE = 2;
+
+    /**
+     * size of the buffers files are read with
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * standard input, opened on the first password read without a console
+     */
+    private static BufferedReader stdin;
+
+    /**
+     * utility class
+     */
+    private CommandLine() {
+    }
+
+    /**
+     * thrown on invalid arguments
+     */
+    private static class UsageException extends Exception {
+
+        /**
+         * Constructor
+         * @param message what is wrong with the arguments
+         */
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * parsed arguments, positional ones in order and options by name
+     * @param positional arguments that are not options
+     * @param options option values by name (without "--"), flags map to "true"
+     */
+    private record Arguments(List<String> positional, Map<String, String> options) {
+
+        /**
+         * option names that take a value
+         */
+        private static final Set<String> VALUED = Set.of("threads", "io-threads", "chunk-size", "hash", "keystore");
+
+        /**
+         * option names that are flags
+         */
+        private static final Set<String> FLAGS = Set.of("unpadded");
+
+        /**
+         * splits raw arguments
+         * @param args raw arguments, without the command
+         * @return parsed arguments
+         * @throws UsageException if an option is unknown or lacks its value
+         */
+        static Arguments parse(List<String> args) throws UsageException {
+
+            List<String> positional = new ArrayList<>();
+            Map<String, String> options = new HashMap<>();
+            for (Iterator<String> it = args.iterator(); it.hasNext(); ) {
+
+                String arg = it.next();
+                if (!arg.startsWith("--")) {
+
+                    positional.add(arg);
+                    continue;
+                }
+
+                String name = arg.substring(2);
+                if (FLAGS.contains(name)) options.put(name, "true");
+                else if (VALUED.contains(name) && it.hasNext()) options.put(name, it.next());
+                else throw new UsageException("Invalid option " + arg);
+            }
+            return new Arguments(positional, options);
+        }
+
+        /**
+         * checks the number of positional arguments
+         * @param count expected number
+         * @return this
+         * @throws UsageException if the number does not match
+         */
+        Arguments expect(int count) throws UsageException {
+            if (positional.size() != count) throw new UsageException("Expected %d arguments".formatted(count));
+
+            return this;
+        }
+
+        /**
+         * Getter for a positional argument as a path
+         * @param index position
+         * @return path
+         */
+        Path path(int index) {
+            return Paths.get(positional.get(index));
+        }
+
+        /**
+         * Getter for the worker thread count
+         * @return value of --threads, the number of processors by default
+         * @throws UsageException if the value is not a positive number
+         */
+        int threads() throws UsageException {
+
+            return count("threads", Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Getter for the file reading thread count of the sign command
+         * @return value of --io-threads, 4 by default
+         * @throws UsageException if the value is not a positive number
+         */
+        int ioThreads() throws UsageException {
+
+            return count("io-threads", 4);
+        }
+
+        /**
+         * Getter for the chunk size of the sign command
+         * @return value of --chunk-size in bytes, 0 (whole files) by default
+         * @throws UsageException if the value is not a number
+         */
+        int chunkSize() throws UsageException {
+
+            String value = options.get("chunk-size");
+            if (value == null) return 0;
+            try {
+                return Integer.parseInt(value);
+
+            } catch (NumberFormatException e) {
+
+                throw new UsageException("Invalid chunk size " + value);
+            }
+        }
+
+        /**
+         * Getter for the hash function of the sign command
+         * @return value of --hash, SHA-256 by default
+         * @throws UsageException if there is no such hash function
+         */
+        HashAlgorithm hashAlgorithm() throws UsageException {
+
+            String value = options.get("hash");
+            if (value == null) return HashAlgorithm.SHA256;
+            try {
+                return HashAlgorithm.fromName(value);
+
+            } catch (IllegalArgumentException e) {
+
+                throw new UsageException(e.getMessage());
+            }
+        }
+
+        /**
+         * Getter for a thread count option
+         * @param name option name
+         * @param fallback value if the option is not given
+         * @return option value
+         * @throws UsageException if the value is not a positive number
+         */
+        private int count(String name, int fallback) throws UsageException {
+
+            String value = options.get(name);
+            if (value == null) return fallback;
+            try {
+                int threads = Integer.parseInt(value);
+                if (threads < 1) throw new UsageException("Thread count must be positive");
+                return threads;
+
+            } catch (NumberFormatException e) {
+
+                throw new UsageException("Invalid thread count " + value);
+            }
+        }
+    }
+
+    /**
+     * runs a command
+     * @param args command followed by its arguments
+     * @return exit status, see {@link #EXIT_OK}, {@link #EXIT_FAILED}, {@link #EXIT_USAGE}
+     */
+    public static int run(String[] args) {
+
+        try {
+            if (args.length == 0) throw new UsageException("No command given");
+            Arguments arguments = Arguments.parse(Arrays.asList(args).subList(1, args.length));
+
+            Map<String, Object> stats = switch (args[0]) {
+                case "sign" -> sign(arguments.expect(3));
+                case "generate" -> generate(arguments.expect(3));
+                case "verify" -> verify(arguments.expect(1));
+                case "help", "--help", "-h" -> {
+                    System.out.print(USAGE);
+                    yield null;
+                }
+                default -> throw new UsageException("Unknown command " + args[0]);
+            };
+            if (stats == null) return EXIT_OK;
+
+            System.out.println(new ObjectMapper().writeValueAsString(stats));
+            return ((Number) stats.get("failed")).intValue() == 0 ? EXIT_OK : EXIT_FAILED;
+
+        } catch (UsageException e) {
+
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return EXIT_USAGE;
+
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException | IllegalStateException e) {
+
+            System.err.println("Failed: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * sign command, hashes all files below a directory in walk order (see {@link DirectorySigner}) and signs the tree over them
+     * @param args directory, key alias, tree file
+     * @return summary
+     * @throws UsageException if the directory does not exist or an option is invalid
+     * @throws IOException if a file or the keystore cannot be read, or the tree cannot be written
+     * @throws GeneralSecurityException if the key cannot be loaded
+     */
+    private static Map<String, Object> sign(Arguments args) throws UsageException, IOException, GeneralSecurityException {
+
+        Path dir = directory(args.path(0));
+        String alias = args.positional().get(1);
+        Path target = args.path(2);
+        DirectorySigner signer = new DirectorySigner(args.ioThreads(), args.threads());
+        int chunkSize = args.chunkSize();
+        if (chunkSize != 0 && (chunkSize < Merkle.MIN_CHUNK_SIZE || chunkSize > Merkle.MAX_CHUNK_SIZE))
+            throw new UsageException("Chunk size must be between %d and %d bytes".formatted(Merkle.MIN_CHUNK_SIZE, Merkle.MAX_CHUNK_SIZE));
+        HashAlgorithm hash = args.hashAlgorithm();
+
+        Stopwatch watch = new Stopwatch();
+
+        // time spent at the password prompts is left out of the key stage and the throughput
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        char[] password = watch.prompt("Keystore password: ");
+        Key key;
+        try {
+            try (InputStream in = Files.newInputStream(Paths.get(args.options().getOrDefault("keystore", "keystore.jsk")))) {
+
+                ks.load(in, password);
+            }
+            if (!ks.isKeyEntry(alias)) throw new KeyStoreException("No key pair named " + alias);
+
+            try {
+                key = ks.getKey(alias, password);
+
+            } catch (UnrecoverableKeyException e) {
+
+                char[] keyPassword = watch.prompt("Key password: ");
+                try {
+                    key = ks.getKey(alias, keyPassword);
+
+                } finally {
+
+                    Arrays.fill(keyPassword, '\0');
+                }
+            }
+
+        } finally {
+
+            Arrays.fill(password, '\0');
+        }
+        Merkle merkle = new Merkle((PrivateKey) key, (X509Certificate) ks.getCertificateChain(alias)[0]);
+        merkle.setPadded(!args.options().containsKey("unpadded"));
+        merkle.setChunkSize(chunkSize);
+        merkle.setHashAlgorithm(hash);
+        watch.stage("key");
+
+        // walking, reading and hashing overlap, so they are timed as one stage
+        AtomicLong bytes = new AtomicLong();
+        signer.setListener((index, file, size) -> bytes.addAndGet(size));
+        int files = signer.add(dir, merkle);
+        watch.stage("hash");
+
+        merkle.closeAndSign();
+        watch.stage("sign");
+
+        merkle.write(target, !target.getFileName().toString().endsWith(".json"));
+        watch.stage("write");
+
+        System.err.println("Signed %d files into %s".formatted(files, target));
+        return watch.summary("sign", files, bytes.get(), 0);
+    }
+
+    /**
+     * generate command, writes a JWS for every file below a directory that is contained in the tree
+     * @param args tree file, directory, output directory
+     * @return summary
+     * @throws UsageException if a directory does not exist or the thread count is invalid
+     * @throws IOException if the tree file cannot be read or the directories cannot be walked
+     */
+    private static Map<String, Object> generate(Arguments args) throws UsageException, IOException {
+
+        Path dir = directory(args.path(1));
+        Path outDir = args.path(2);
+        int threads = args.threads();
+
+        Stopwatch watch = new Stopwatch();
+
+        Merkle tree = readTree(args.path(0));
+        HTJWSBuilder.Batch batch = new HTJWSBuilder.Batch(tree);
+        watch.stage("load");
+
+        List<Path> files = walk(dir, file -> true);
+        watch.stage("walk");
+
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = pool(threads);
+        try {
+            List<Future<?>> jobs = new ArrayList<>(files.size());
+            for (Path file : files) jobs.add(pool.submit(() -> {
+                try {
+                    byte[] msg = Files.readAllBytes(file);
+                    bytes.addAndGet(msg.length);
+
+                    Path jws = outDir.resolve(dir.relativize(file)).resolveSibling(
+                            "%s.jws".formatted(file.getFileName().toString().replace(".", "-"))
+                    );
+                    Files.createDirectories(jws.getParent());
+                    Files.writeString(jws, batch.genJWS(msg).serialize(), StandardCharsets.UTF_8);
+
+                } catch (IOException | ParseException | IllegalArgumentException e) {
+
+                    failed.incrementAndGet();
+                    System.err.println("Failed to generate JWS for %s: %s".formatted(file, e.getMessage()));
+                }
+            }));
+            for (Future<?> job : jobs) job.get();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while generating");
+
+        } catch (ExecutionException e) {
+
+            throw new IOException(e.getCause());
+
+        } finally {
+
+            pool.shutdownNow();
+        }
+        watch.stage("generate");
+
+        System.err.println("Generated %d JWS files into %s".formatted(files.size() - failed.get(), outDir));
+        return watch.summary("generate", files.size(), bytes.get(), failed.get());
+    }
+
+    /**
+     * verify command, verifies all JWS files below a directory at once, see {@link HTJSWVerifier#verifyAll(Collection, ForkJoinPool)}
+     * @param args directory
+     * @return summary
+     * @throws UsageException if the directory does not exist or the thread count is invalid
+     * @throws IOException if the directory cannot be walked
+     */
+    private static Map<String, Object> verify(Arguments args) throws UsageException, IOException {
+
+        Path dir = directory(args.path(0));
+        int threads = args.threads();
+
+        Stopwatch watch = new Stopwatch();
+
+        List<Path> files = walk(dir, file -> file.getFileName().toString().endsWith(".jws"));
+        long bytes = 0;
+        for (Path file : files) bytes += Files.size(file);
+        watch.stage("walk");
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        boolean[] results;
+        try {
+            results = new HTJSWVerifier().verifyAll(files, pool);
+
+        } finally {
+
+            pool.shutdown();
+        }
+        watch.stage("verify");
+
+        int failed = 0;
+        for (int i = 0; i < results.length; i++) {
+
+            if (results[i]) continue;
+            failed++;
+            System.err.println("Invalid: " + files.get(i));
+        }
+
+        System.err.println("%d of %d JWS files valid".formatted(files.size() - failed, files.size()));
+        return watch.summary("verify", files.size(), bytes, failed);
+    }
+
+    /**
+     * checks that a path is a directory
+     * @param dir path
+     * @return the path
+     * @throws UsageException if it is not a directory
+     */
+    private static Path directory(Path dir) throws UsageException {
+        if (!Files.isDirectory(dir)) throw new UsageException("Not a directory: " + dir);
+
+        return dir;
+    }
+
+    /**
+     * lists all regular files below a directory, sorted by path so runs are reproducible
+     * @param dir directory
+     * @param filter files to include
+     * @return sorted files
+     * @throws IOException if the directory cannot be walked
+     */
+    private static List<Path> walk(Path dir, Predicate<Path> filter) throws IOException {
+
+        try (Stream<Path> paths = Files.walk(dir)) {
+
+            return paths.filter(Files::isRegularFile).filter(filter).sorted().toList();
+        }
+    }
+
+    /**
+     * creates a fixed pool of daemon worker threads
+     * @param threads thread count
+     * @return pool
+     */
+    private static ExecutorService pool(int threads) {
+
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "hashtreesig-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * reads a tree file in either the JSON or the binary format
+     * @param file tree file
+     * @return closed instance
+     * @throws IOException if the file cannot be read or is not a valid signed tree
+     */
+    static Merkle readTree(Path file) throws IOException {
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+
+            return first == '{' ? Merkle.fromJSON(in) : Merkle.fromBinary(in);
+        }
+    }
+
+    /**
+     * reads a password from the console without echo, or from standard input if there is no console
+     * @param prompt prompt written to standard error
+     * @return password
+     * @throws IOException if standard input cannot be read
+     */
+    private static char[] readPassword(String prompt) throws IOException {
+
+        Console console = System.console();
+        if (console != null) {
+
+            char[] password = console.readPassword(prompt);
+            return password == null ? new char[0] : password;
+        }
+
+        System.err.print(prompt);
+        if (stdin == null) stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line = stdin.readLine();
+        return line == null ? new char[0] : line.toCharArray();
+    }
+
+    /**
+     * measures the duration of consecutive stages of a command
+     */
+    private static class Stopwatch {
+
+        /**
+         * start of the command, moved forward by the time spent at prompts
+         */
+        private long start = System.nanoTime();
+
+        /**
+         * end of the last stage
+         */
+        private long last = start;
+
+        /**
+         * stage durations in milliseconds, in order
+         */
+        private final Map<String, Long> stages = new LinkedHashMap<>();
+
+        /**
+         * ends the current stage
+         * @param name stage name
+         */
+        void stage(String name) {
+
+            long now = System.nanoTime();
+            stages.put(name, (now - last) / 1_000_000);
+            last = now;
+        }
+
+        /**
+         * reads a password, leaving the time spent waiting for the operator out of the current stage and the total
+         * @param prompt prompt written to standard error
+         * @return password
+         * @throws IOException if standard input cannot be read
+         */
+        char[] prompt(String prompt) throws IOException {
+
+            long begin = System.nanoTime();
+            try {
+                return readPassword(prompt);
+
+            } finally {
+
+                long waited = System.nanoTime() - begin;
+                start += waited;
+                last += waited;
+            }
+        }
+
+        /**
+         * builds the summary of a command
+         * @param command command name
+         * @param files number of processed files
+         * @param bytes number of processed bytes
+         * @param failed number of files that failed
+         * @return summary in output order
+         */
+        Map<String, Object> summary(String command, int files, long bytes, int failed) {
+
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("command", command);
+            summary.put("files", files);
+            summary.put("failed", failed);
+            summary.put("bytes", bytes);
+            summary.put("seconds", seconds);
+            summary.put("files_per_second", files / seconds);
+            summary.put("bytes_per_second", bytes / seconds);
+            summary.put("stages_ms", stages);
+            return summary;
+        }
+    }
+}
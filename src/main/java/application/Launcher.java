@@ -0,0 +1,43 @@
+package application;
+
+import javafx.application.Application;
+/*
+*    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+*    Copyright (C) 2022  F. Krause
+*
+*    This program is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License as published by
+*    the Free Software Foundation, either version 3 of the License, or
+*    (at your option) any later version.
+*
+*    This program is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public License
+*    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+/**
+ * entry point of the program. unlike {@link Main}, it does not extend {@link Application},
+ * so the launcher does not hand startup to JavaFX and the command line runs without starting the UI toolkit or needing a display
+ * @author F. Krause
+ */
+public final class Launcher {
+
+    /**
+     * no instances
+     */
+    private Launcher() {
+    }
+
+    /**
+     * main executable, runs a command line without the GUI if arguments are given (see {@link CommandLine}), launches the GUI otherwise
+     * @param args parameters
+     */
+    public static void main(String[] args) {
+        if (args.length > 0) System.exit(CommandLine.run(args));
+
+        Application.launch(Main.class);
+    }
+}
@@ -65,11 +65,12 @@ public class Main extends Application {
     private static double xOffset = 0, yOffset = 0;
 
     /**
-     * main executable, launches GUI
-     * @param args parameters
+     * launches the GUI, the program is started through {@link Launcher}, which also runs the command line
+     * @param args parameters, ignored
      */
     public static void main(String[] args) {
-        launch();
+
+        launch(args);
     }
 
     /**
@@ -2,9 +2,11 @@ package application;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSObject;
+import htjsw.DirectorySigner;
 import htjsw.HTJSWVerifier;
 import htjsw.HTJWSBuilder;
 import htjsw.Merkle;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -19,20 +21,13 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
+import java.nio.file.*;
+import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.ECPrivateKey;
 import java.text.ParseException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.*;
 
 /*
  *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
@@ -136,6 +131,21 @@ public class MainController {
      */
     private KeyStore ks;
 
+    /**
+     * number of worker threads reading and hashing during signing, or reading, looking up and writing during JWS generation
+     */
+    private static final int GEN_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * signing currently or last running in the background, null if none has been started
+     */
+    private @Nullable Task<Path> signTask;
+
+    /**
+     * JWS generation currently or last running in the background, null if none has been started
+     */
+    private @Nullable Task<List<String>> genTask;
+
     /**
      * called by fxmlloader upon controller initialization
      */
@@ -260,14 +270,19 @@ public class MainController {
     /**
      * signing process called by button press.
      * checks if output directory and keypair are selected, asks for password for key use,
-     * constructs and signs the hashtree from the files and saves it into the  output directory serialized into json format.
-     * progress is output using the  progress bar
+     * then constructs and signs the hashtree from the files in the background, see {@link SignTask}.
+     * pressing the button again while signing is running cancels it
      * @param actionEvent called on UI action
      */
     private void sign(ActionEvent actionEvent) {
-        sigProg.setProgress(-1);
 
-        if (keyChoice.getSelectionModel().getSelectedItem().isEmpty()) {
+        if (signTask != null && signTask.isRunning()) {
+
+            signTask.cancel();
+            return;
+        }
+
+        if (keyChoice.getValue() == null || keyChoice.getValue().isEmpty()) {
             new Alert(Alert.AlertType.ERROR, "No valid key pair has been selected!").showAndWait();
             sigProg.setProgress(0);
             return;
@@ -279,6 +294,7 @@ public class MainController {
             return;
         }
 
+        Merkle merkle = null;
         try {
             boolean retry;
 
@@ -286,20 +302,7 @@ public class MainController {
                 retry = false;
 
                 try {
-                    Merkle merkle = new Merkle((ECPrivateKey) ks.getKey(keyChoice.getValue(), Main.enterPW()), (X509Certificate) ks.getCertificateChain(keyChoice.getValue())[0]);
-
-                    sigProg.setProgress(0);
-                    for (File file : fileList.getItems()) {
-
-                        merkle.add(Files.readAllBytes(file.toPath()));
-                        sigProg.setProgress((1.0 / fileList.getItems().size()) * 0.5);
-                    }
-
-                    merkle.closeAndSign();
-                    sigProg.setProgress(0.75);
-
-                    new FileOutputStream(new File(outpDir, "tree-%d.json".formatted(System.currentTimeMillis())))
-                            .write(merkle.serialize().getBytes(StandardCharsets.UTF_8));
+                    merkle = new Merkle((PrivateKey) ks.getKey(keyChoice.getValue(), Main.enterPW()), (X509Certificate) ks.getCertificateChain(keyChoice.getValue())[0]);
 
                 } catch (UnrecoverableKeyException e) {
 
@@ -311,84 +314,403 @@ public class MainController {
 
             } while(retry);
 
-            sigProg.setProgress(1);
-            new Alert(Alert.AlertType.INFORMATION, "Successfully generated signed Hashtree!");
-
         } catch (NoSuchAlgorithmException e) {
 
             e.printStackTrace();
             sigProg.setDisable(true);
+            return;
 
-        } catch (IOException e) {
+        } catch (KeyStoreException e) {
 
-            new Alert(Alert.AlertType.ERROR, "Failed to read or write file").showAndWait();
+            new Alert(Alert.AlertType.ERROR, "Could not use the selected Keypair").showAndWait();
             e.printStackTrace();
             sigProg.setProgress(0);
+            return;
+        }
 
-        } catch (KeyStoreException e) {
+        if (merkle == null) {
+            sigProg.setProgress(0);
+            return;
+        }
 
-            new Alert(Alert.AlertType.ERROR, "Could not use the selected Keypair").showAndWait();
-            e.printStackTrace();
+        SignTask task = new SignTask(merkle, List.copyOf(fileList.getItems()), outpDir);
+        signTask = task;
+
+        sigProg.progressProperty().bind(task.progressProperty());
+        Tooltip tip = new Tooltip();
+        tip.textProperty().bind(task.messageProperty());
+        sigProg.setTooltip(tip);
+        signBut.setText("Cancel");
+
+        task.setOnSucceeded(event -> {
+
+            signDone();
+            sigProg.setProgress(1);
+            new Alert(Alert.AlertType.INFORMATION, "Successfully generated signed Hashtree!").show();
+        });
+        task.setOnCancelled(event -> {
+
+            signDone();
+            sigProg.setProgress(0);
+        });
+        task.setOnFailed(event -> {
+
+            signDone();
             sigProg.setProgress(0);
+            task.getException().printStackTrace();
+            if (task.getException() instanceof IOException)
+                new Alert(Alert.AlertType.ERROR, "Failed to read or write file").show();
+            else
+                new Alert(Alert.AlertType.ERROR, "Signing failed").show();
+        });
+
+        Thread thread = new Thread(task, "tree-signing");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * resets the signing controls once the running task has ended, called on the FX thread
+     */
+    private void signDone() {
+
+        sigProg.progressProperty().unbind();
+        sigProg.getTooltip().textProperty().unbind();
+        signBut.setText("Sign");
+    }
+
+    /**
+     * background task building, signing and saving a hashtree over the given files.
+     * files are added through a {@link DirectorySigner}, which reads and hashes them on its own pools of worker threads
+     * and adds their digests in list order, honouring the hash function and chunk size of the tree.
+     * progress follows the bytes hashed and is published at most every {@link #PROGRESS_INTERVAL} milliseconds.
+     * the tree file is written to a temporary file first and moved into place once complete, see {@link Merkle#write(Path, boolean)}
+     */
+    private static class SignTask extends Task<Path> {
+
+        /**
+         * minimal time between two progress updates, in milliseconds
+         */
+        private static final long PROGRESS_INTERVAL = 100;
+
+        /**
+         * share of the progress bar taken up by hashing, the rest is signing and writing
+         */
+        private static final double HASH_SHARE = 0.9;
+
+        /**
+         * unsigned tree, initialised with the signing key
+         */
+        private final Merkle merkle;
+
+        /**
+         * message files to sign
+         */
+        private final List<File> files;
+
+        /**
+         * directory to write the tree file to
+         */
+        private final File outpDir;
+
+        /**
+         * bytes to hash in total
+         */
+        private long total;
+
+        /**
+         * bytes hashed so far
+         */
+        private long hashed;
+
+        /**
+         * start of the signing process, in nanoseconds
+         */
+        private long start;
+
+        /**
+         * time of the last progress update, in nanoseconds
+         */
+        private long lastUpdate;
+
+        /**
+         * Constructor
+         * @param merkle unsigned tree, initialised with the signing key
+         * @param files message files
+         * @param outpDir output directory
+         */
+        SignTask(Merkle merkle, List<File> files, File outpDir) {
+
+            this.merkle = merkle;
+            this.files = files;
+            this.outpDir = outpDir;
         }
+
+        /**
+         * signing process, runs on the task thread
+         * @return the written tree file
+         * @throws Exception if a file cannot be read or written, or the tree cannot be signed
+         */
+        @Override
+        protected Path call() throws Exception {
+
+            List<Path> paths = new ArrayList<>(files.size());
+            for (File file : files) {
+
+                total += file.length();
+                paths.add(file.toPath());
+            }
+            start = System.nanoTime();
+            updateProgress(0, 1);
+
+            DirectorySigner signer = new DirectorySigner(Math.max(2, GEN_THREADS / 2), GEN_THREADS);
+            signer.setListener(this::added);
+            try {
+                signer.add(paths, merkle);
+
+            } catch (CancellationException | InterruptedIOException e) {
+
+                if (isCancelled()) return null;
+                throw e;
+            }
+
+            updateMessage("Signing");
+            merkle.closeAndSign();
+            updateProgress(0.95, 1);
+
+            if (isCancelled()) return null;
+
+            updateMessage("Writing tree file");
+            Path target = new File(outpDir, "tree-%d.json".formatted(System.currentTimeMillis())).toPath();
+            merkle.write(target, false);
+
+            updateProgress(1, 1);
+            return target;
+        }
+
+        /**
+         * counts a hashed file and publishes the progress, called on the task thread.
+         * cancelling stops the pipeline at the next file
+         * @param index order index of the file
+         * @param file the file
+         * @param size number of bytes hashed
+         * @throws CancellationException if the task has been cancelled
+         */
+        private void added(int index, Path file, long size) throws CancellationException {
+            if (isCancelled()) throw new CancellationException();
+
+            hashed += size;
+            long now = System.nanoTime();
+            if (now - lastUpdate >= PROGRESS_INTERVAL * 1_000_000) {
+
+                lastUpdate = now;
+                updateProgress(HASH_SHARE * hashed, total == 0 ? 1 : total);
+                updateMessage(byteRateText(hashed, total, now - start));
+            }
+        }
+    }
+
+    /**
+     * formats progress, throughput and the estimated time left of byte processing for a progress bar tooltip
+     * @param done bytes processed so far
+     * @param total bytes to process in total
+     * @param elapsed nanoseconds since the start
+     * @return e.g. "120.0 / 800.0 MB, 95.3 MB/s, ETA 0:07"
+     */
+    private static String byteRateText(long done, long total, long elapsed) {
+
+        double rate = done * 1e9 / Math.max(elapsed, 1);
+        long eta = rate > 0 ? (long) ((total - done) / rate) : 0;
+
+        return "%.1f / %.1f MB, %.1f MB/s, ETA %d:%02d".formatted(done / 1e6, total / 1e6, rate / 1e6, eta / 60, eta % 60);
     }
 
     /**
      * signature generation process called by button press.
      * checks if source tree and output directory have been selected,
-     * generates JSWs for the selected files one after the other
+     * then generates JWSs for the selected files in the background, see {@link GenerateTask}.
+     * pressing the button again while generation is running cancels it
      * @param actionEvent called on UI action
      */
     private void generate(ActionEvent actionEvent) {
 
-        genbar.setProgress(-1);
+        if (genTask != null && genTask.isRunning()) {
+
+            genTask.cancel();
+            return;
+        }
 
         if(genTree == null || genOutpDir == null) {
 
             new Alert(Alert.AlertType.ERROR, "Please select a source File and an output Directory!").showAndWait();
-            sigProg.setProgress(0);
+            genbar.setProgress(0);
             return;
         }
 
-        genbar.setProgress(0);
-        double step = (1.0 / GenList.getItems().size()) / 3;
+        GenerateTask task = new GenerateTask(genTree, List.copyOf(GenList.getItems()), genOutpDir);
+        genTask = task;
 
-        for (File file : GenList.getItems()) {
-            try {
+        genbar.progressProperty().bind(task.progressProperty());
+        Tooltip tip = new Tooltip();
+        tip.textProperty().bind(task.messageProperty());
+        genbar.setTooltip(tip);
+        gen.setText("Cancel");
 
-                byte[] msg = Files.readAllBytes(file.toPath());
+        task.setOnSucceeded(event -> {
 
-                genbar.setProgress(genbar.getProgress() + step);
+            genDone();
+            genbar.setProgress(1.0);
 
-                JWSObject jws = HTJWSBuilder.genJWS(genTree, msg);
+            List<String> failed = task.getValue();
+            if (failed.isEmpty()) new Alert(Alert.AlertType.INFORMATION, "Signature Generation successful!").show();
+            else new Alert(
+                    Alert.AlertType.ERROR,
+                    "failed to generate Signatures for %d File(s): %s".formatted(failed.size(), String.join(", ", failed))
+            ).show();
+        });
+        task.setOnCancelled(event -> {
 
-                genbar.setProgress(genbar.getProgress() + step);
+            genDone();
+            genbar.setProgress(0);
+        });
+        task.setOnFailed(event -> {
 
-                new FileOutputStream(
-                        new File(
-                                genOutpDir,
-                                "%s.jws".formatted(file.getName().replace(".", "-"))
-                        )
-                ).write(jws.serialize().getBytes(StandardCharsets.UTF_8));
+            genDone();
+            genbar.setProgress(0);
+            task.getException().printStackTrace();
+            new Alert(Alert.AlertType.ERROR, "Signature Generation failed").show();
+        });
 
-                genbar.setProgress(genbar.getProgress() + step);
+        Thread thread = new Thread(task, "jws-generation");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-            } catch (ParseException | IllegalArgumentException | Merkle.ConcatException e) {
+    /**
+     * resets the generation controls once the running task has ended, called on the FX thread
+     */
+    private void genDone() {
 
-                new Alert(Alert.AlertType.ERROR, "failed to generate Signature for File %s".formatted(file.getName()))
-                        .showAndWait();
-                genbar.setProgress((1.0 / GenList.getItems().size()) * (GenList.getItems().indexOf(file) + 1));
+        genbar.progressProperty().unbind();
+        genbar.getTooltip().textProperty().unbind();
+        gen.setText("Generate");
+    }
 
-            } catch (IOException e) {
+    /**
+     * background task generating a JWS file per message file.
+     * the files are read, looked up in a {@link HTJWSBuilder.Batch} and written on a fixed pool of worker threads,
+     * progress is reported per finished file along with the throughput and the estimated time left.
+     * the result lists the names of the files that could not be read or are not contained in the tree
+     */
+    private static class GenerateTask extends Task<List<String>> {
+
+        /**
+         * closed and signed source tree
+         */
+        private final Merkle tree;
+
+        /**
+         * message files to generate JWSs for
+         */
+        private final List<File> files;
+
+        /**
+         * directory to write the JWS files to
+         */
+        private final File outpDir;
+
+        /**
+         * Constructor
+         * @param tree closed and signed source tree
+         * @param files message files
+         * @param outpDir output directory
+         */
+        GenerateTask(Merkle tree, List<File> files, File outpDir) {
+
+            this.tree = tree;
+            this.files = files;
+            this.outpDir = outpDir;
+        }
+
+        /**
+         * generation process, runs on the task thread
+         * @return names of the files no JWS could be generated for
+         * @throws InterruptedException if the task thread is interrupted while waiting for the workers
+         */
+        @Override
+        protected List<String> call() throws InterruptedException {
+
+            HTJWSBuilder.Batch batch = new HTJWSBuilder.Batch(tree);
+            int total = files.size();
+            long start = System.nanoTime();
+            updateProgress(0, total);
+
+            ExecutorService pool = Executors.newFixedThreadPool(GEN_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "jws-generation-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            CompletionService<String> done = new ExecutorCompletionService<>(pool);
+
+            try {
+                // each job yields the name of its file if it failed, null otherwise,
+                // any exception of a single file only marks that file as failed
+                for (File file : files) done.submit(() -> {
+                    if (isCancelled()) return null;
+
+                    try {
+                        JWSObject jws = batch.genJWS(Files.readAllBytes(file.toPath()));
+                        Files.writeString(
+                                new File(outpDir, "%s.jws".formatted(file.getName().replace(".", "-"))).toPath(),
+                                jws.serialize(),
+                                StandardCharsets.UTF_8
+                        );
+                        return null;
+
+                    } catch (ParseException | IOException | RuntimeException e) {
+
+                        return file.getName();
+                    }
+                });
+
+                List<String> failed = new ArrayList<>();
+                for (int i = 1; i <= total && !isCancelled(); i++) {
+                    try {
+                        String name = done.take().get();
+                        if (name != null) failed.add(name);
+
+                    } catch (ExecutionException e) {
+
+                        // only errors escape the jobs, those end the whole generation
+                        throw new IllegalStateException(e.getCause());
+                    }
+
+                    updateProgress(i, total);
+                    updateMessage(rateText(i, total, "JWSs", System.nanoTime() - start));
+                }
+                return failed;
 
-                new Alert(Alert.AlertType.ERROR, "failed to open File %s".formatted(file.getName()))
-                        .showAndWait();
-                genbar.setProgress((1.0 / GenList.getItems().size()) * (GenList.getItems().indexOf(file) + 1));
+            } finally {
+
+                pool.shutdownNow();
             }
         }
+    }
+
+    /**
+     * formats progress, throughput and the estimated time left for a progress bar tooltip
+     * @param done units processed so far
+     * @param total units to process in total
+     * @param unit name of the units
+     * @param elapsed nanoseconds since the start
+     * @return e.g. "1200 / 5000 JWSs, 400 JWSs/s, ETA 0:09"
+     */
+    private static String rateText(long done, long total, String unit, long elapsed) {
+
+        double rate = done * 1e9 / Math.max(elapsed, 1);
+        long eta = rate > 0 ? (long) ((total - done) / rate) : 0;
 
-        genbar.setProgress(1.0);
-        new Alert(Alert.AlertType.INFORMATION, "Signature Generation successful!");
+        return "%d / %d %s, %.0f %s/s, ETA %d:%02d".formatted(done, total, unit, rate, unit, eta / 60, eta % 60);
     }
 
     /**
@@ -498,7 +820,7 @@ public class MainController {
     public void parseTreeJSON(File treeFile) {
 
         try {
-            genTree = Merkle.fromJSON(Files.readString(treeFile.toPath()));
+            genTree = Merkle.fromJSON(treeFile.toPath());
             treeCheck.setSelected(true);
 
         } catch (IOException e) {
@@ -0,0 +1,401 @@
+package htjsw;
+
+import com.nimbusds.jose.util.Base64URL;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Subtree over the chunks of a message, used as its leaf in chunked leaf mode (see {@link Merkle#setChunkSize(int)}).
+ * a message longer than the chunk size is split into chunks of that size (the last one may be shorter),
+ * each chunk is hashed as H(0x00 | 8 byte big endian chunk index | chunk),
+ * and the chunk hashes are folded like an unpadded tree, promoting lone nodes, with every node hashed as H(0x01 | left | right).
+ * the tags keep chunk hashes and chunk tree nodes apart, and as a chunk path always holds at least one tagged node,
+ * a node of the tree above (untagged 64 byte preimage) cannot be passed off as a chunk either,
+ * so a proven chunk is bound to its index. what remains is the tree above, whose leaves and nodes are not separated:
+ * as for any message, the preimage of a node can be presented as a whole message, which a chunk proof does not change.
+ * messages up to the chunk size keep their plain hash as leaf.
+ * the chunks are independent, so they are hashed in parallel and a single chunk can be proven on its own.
+ * nodes are held in flat arrays of 32 byte hashes
+ * @author F. Krause
+ */
+final class ChunkTree {
+
+    /**
+     * per-thread read buffers for hashing file chunks
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(Merkle.BUFFER_SIZE));
+
+    /**
+     * tag in front of the index of every chunk hash
+     */
+    private static final byte LEAF = 0x00;
+
+    /**
+     * tag in front of the children of every chunk tree node
+     */
+    private static final byte NODE = 0x01;
+
+    /**
+     * no instances
+     */
+    private ChunkTree() {
+    }
+
+    /**
+     * checks a chunk size
+     * @param chunkSize chunk size in bytes
+     * @return true if it is within {@link Merkle#MIN_CHUNK_SIZE} and {@link Merkle#MAX_CHUNK_SIZE}
+     */
+    static boolean validChunkSize(long chunkSize) {
+
+        return chunkSize >= Merkle.MIN_CHUNK_SIZE && chunkSize <= Merkle.MAX_CHUNK_SIZE;
+    }
+
+    /**
+     * computes the number of chunks of a message
+     * @param length message length in bytes
+     * @param chunkSize chunk size in bytes
+     * @return number of chunks
+     * @throws IllegalArgumentException if the message would have too many chunks
+     */
+    static int chunkCount(long length, int chunkSize) throws IllegalArgumentException {
+
+        long count = (length + chunkSize - 1) / chunkSize;
+        if (count > Integer.MAX_VALUE / Merkle.NODE_SIZE) throw new IllegalArgumentException("Too many chunks, use a larger chunk size");
+        return (int) Math.max(count, 1);
+    }
+
+    /**
+     * starts the hash of a chunk by feeding the leaf tag and its index to the digest
+     * @param md digest to feed
+     * @param index chunk index
+     */
+    static void startChunk(MessageDigest md, long index) {
+
+        md.update(LEAF);
+        for (int shift = 56; shift >= 0; shift -= 8) md.update((byte) (index >>> shift));
+    }
+
+    /**
+     * computes the leaf of a message held in memory, hashing its chunks on the given pool
+     * @param msg raw message
+     * @param chunkSize chunk size, 0 for plain leaves
+     * @param hash hash function of the tree
+     * @param pool pool to hash the chunks on
+     * @return plain hash for messages up to the chunk size, else the chunk tree root
+     */
+    static byte[] leaf(byte[] msg, int chunkSize, HashAlgorithm hash, ForkJoinPool pool) {
+
+        if (chunkSize == 0 || msg.length <= chunkSize) return hash.digest().digest(msg);
+
+        int count = chunkCount(msg.length, chunkSize);
+        byte[] hashes = new byte[count * Merkle.NODE_SIZE];
+        pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, count).parallel().forEach(i -> {
+
+            MessageDigest md = hash.digest();
+            startChunk(md, i);
+            int from = i * chunkSize;
+            md.update(msg, from, Math.min(chunkSize, msg.length - from));
+            digest(md, hashes, i);
+        })));
+
+        return root(hash.digest(), hashes, count);
+    }
+
+    /**
+     * computes the leaf of a message read from a file, reading and hashing its chunks in parallel on the given pool.
+     * every worker reads its chunks with positional reads into a small per-thread buffer, so no chunk is held in memory
+     * @param file file containing the raw message
+     * @param chunkSize chunk size, 0 for plain leaves
+     * @param hash hash function of the tree
+     * @param pool pool to read and hash the chunks on
+     * @return plain hash for messages up to the chunk size, else the chunk tree root
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] leaf(Path file, int chunkSize, HashAlgorithm hash, ForkJoinPool pool) throws IOException {
+
+        if (chunkSize == 0 || Files.size(file) <= chunkSize) {
+
+            try (InputStream in = Files.newInputStream(file)) {
+
+                return Merkle.digest(hash.digest(), in);
+            }
+        }
+
+        byte[] hashes = hashes(file, chunkSize, hash, pool);
+        return root(hash.digest(), hashes, hashes.length / Merkle.NODE_SIZE);
+    }
+
+    /**
+     * computes the leaf of a message read from a stream, hashing chunk after chunk on the calling thread
+     * (the stream is read to its end but not closed).
+     * the stream is read through a buffer of {@link Merkle#BUFFER_SIZE} bytes, whatever the chunk size:
+     * the first chunk is fed to both the plain digest and the chunk digest until it is clear whether the message is longer than a chunk
+     * @param in stream containing the raw message
+     * @param chunkSize chunk size, 0 for plain leaves
+     * @param md digest of the tree's hash function, is reset afterwards
+     * @param hash hash function of the tree, for the chunk digest
+     * @return plain hash for messages up to the chunk size, else the chunk tree root
+     * @throws IOException if the stream cannot be read
+     */
+    static byte[] leaf(InputStream in, int chunkSize, MessageDigest md, HashAlgorithm hash) throws IOException {
+
+        if (chunkSize == 0) return Merkle.digest(md, in);
+
+        MessageDigest chunk = hash.digest();
+        try {
+            byte[] buf = new byte[Merkle.BUFFER_SIZE];
+            byte[] hashes = new byte[4 * Merkle.NODE_SIZE];
+            int count = 0, filled = 0;
+            boolean plain = true;
+            startChunk(chunk, 0);
+
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                for (int off = 0; off < len; ) {
+
+                    // a full chunk followed by more data, so the message is chunked
+                    if (filled == chunkSize) {
+
+                        plain = false;
+                        if ((count + 1) * Merkle.NODE_SIZE > hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                        digest(chunk, hashes, count++);
+                        startChunk(chunk, count);
+                        filled = 0;
+                    }
+
+                    int take = Math.min(len - off, chunkSize - filled);
+                    if (plain) md.update(buf, off, take);
+                    chunk.update(buf, off, take);
+                    off += take;
+                    filled += take;
+                }
+            }
+
+            // a message that fits into the first chunk keeps its plain hash
+            if (plain) return md.digest();
+
+            if ((count + 1) * Merkle.NODE_SIZE > hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            digest(chunk, hashes, count++);
+            md.reset();
+            return root(md, hashes, count);
+
+        } finally {
+
+            md.reset();
+            chunk.reset();
+        }
+    }
+
+    /**
+     * hashes all chunks of a file in parallel
+     * @param file file containing the raw message
+     * @param chunkSize chunk size
+     * @param hash hash function of the tree
+     * @param pool pool to read and hash the chunks on
+     * @return chunk hashes in order
+     * @throws IOException if the file cannot be read or changes size while being read
+     */
+    static byte[] hashes(Path file, int chunkSize, HashAlgorithm hash, ForkJoinPool pool) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            int count = chunkCount(size, chunkSize);
+            byte[] hashes = new byte[count * Merkle.NODE_SIZE];
+
+            pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    long from = (long) i * chunkSize;
+                    hashChunk(hash.digest(), channel, from, Math.min(from + chunkSize, size), i, hashes);
+
+                } catch (IOException e) {
+
+                    throw new UncheckedIOException(e);
+                }
+            })));
+
+            return hashes;
+
+        } catch (UncheckedIOException e) {
+
+            throw new IOException("Unable to read " + file, e.getCause());
+        }
+    }
+
+    /**
+     * reads and hashes a single chunk of a file on the current thread
+     * @param md digest to use, is reset afterwards
+     * @param channel open file
+     * @param from start of the chunk
+     * @param to end of the chunk
+     * @param index chunk index
+     * @param hashes buffer to write the chunk hash to, at index * 32
+     * @throws IOException if the chunk cannot be read
+     */
+    static void hashChunk(MessageDigest md, FileChannel channel, long from, long to, int index, byte[] hashes) throws IOException {
+
+        ByteBuffer buf = buffers.get();
+        try {
+            startChunk(md, index);
+            for (long position = from; position < to; ) {
+
+                buf.clear().limit((int) Math.min(buf.capacity(), to - position));
+                int read = channel.read(buf, position);
+                if (read < 0) throw new IOException("File shrank while being read");
+
+                md.update(buf.array(), 0, read);
+                position += read;
+            }
+            digest(md, hashes, index);
+
+        } finally {
+
+            md.reset();
+        }
+    }
+
+    /**
+     * reads a single chunk of a file
+     * @param file file containing the raw message
+     * @param chunkSize chunk size
+     * @param index chunk index
+     * @return chunk content
+     * @throws IOException if the file cannot be read
+     * @throws IndexOutOfBoundsException if the file has no such chunk
+     */
+    static byte[] readChunk(Path file, int chunkSize, int index) throws IOException, IndexOutOfBoundsException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            long from = (long) index * chunkSize;
+            if (index < 0 || from >= size) throw new IndexOutOfBoundsException(index);
+
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, size - from));
+            while (chunk.hasRemaining()) if (channel.read(chunk, from + chunk.position()) < 0) throw new IOException("File shrank while being read");
+            return chunk.array();
+        }
+    }
+
+    /**
+     * finishes a hash into a flat node array
+     * @param md digest holding the chunk
+     * @param hashes node array
+     * @param index node index
+     */
+    private static void digest(MessageDigest md, byte[] hashes, int index) {
+
+        try {
+            md.digest(hashes, index * Merkle.NODE_SIZE, Merkle.NODE_SIZE);
+
+        } catch (DigestException e) {
+
+            throw new IllegalStateException("Invalid node buffer", e);
+        }
+    }
+
+    /**
+     * folds chunk hashes into the root of their tree, promoting lone nodes, overwriting the given nodes
+     * @param md digest of the tree's hash function
+     * @param hashes chunk hashes, at least one
+     * @param count number of chunk hashes
+     * @return root hash
+     */
+    static byte[] root(MessageDigest md, byte[] hashes, int count) {
+
+        for (int width = count; width > 1; width = (width + 1) / 2) fold(md, hashes, width);
+        return Arrays.copyOf(hashes, Merkle.NODE_SIZE);
+    }
+
+    /**
+     * computes the path of a chunk up to the chunk tree root, in the same notation as tree paths.
+     * its nodes are folded with {@link #nodeHash}, so it is passed separately from the tree path
+     * @param md digest of the tree's hash function
+     * @param hashes chunk hashes, are overwritten
+     * @param count number of chunk hashes
+     * @param index chunk index
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IndexOutOfBoundsException if there is no chunk at this index
+     */
+    static String[] path(MessageDigest md, byte[] hashes, int count, int index) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException(index);
+
+        String[] path = new String[32];
+        int length = 0;
+        for (int width = count; width > 1; width = (width + 1) / 2, index /= 2) {
+
+            int sibling = index ^ 1;
+            if (sibling < width) {
+
+                int off = sibling * Merkle.NODE_SIZE;
+                path[length++] = sibling < index
+                        ? Base64URL.encode(Merkle.leftMarked(hashes, off)).toString()
+                        : Base64URL.encode(Arrays.copyOfRange(hashes, off, off + Merkle.NODE_SIZE)).toString();
+            }
+
+            fold(md, hashes, width);
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /**
+     * hashes two chunk tree nodes (left to right order) with the node tag into a caller-provided buffer,
+     * the output may overlap either input
+     * @param md digest of the tree's hash function, is reset afterwards
+     * @param left buffer containing the left node
+     * @param leftOff offset of the left node
+     * @param right buffer containing the right node
+     * @param rightOff offset of the right node
+     * @param out buffer to write the resulting node to
+     * @param outOff offset to write the resulting node at
+     */
+    static void nodeHash(MessageDigest md, byte[] left, int leftOff, byte[] right, int rightOff, byte[] out, int outOff) {
+
+        md.update(NODE);
+        Merkle.nodeHash(md, left, leftOff, right, rightOff, out, outOff);
+    }
+
+    /**
+     * hashes a row of nodes into the row above, in place at the start of the array, promoting a lone last node
+     * @param md digest of the tree's hash function
+     * @param hashes nodes of the row
+     * @param width number of nodes in the row
+     */
+    private static void fold(MessageDigest md, byte[] hashes, int width) {
+
+        for (int i = 0; i + 1 < width; i += 2)
+            nodeHash(md, hashes, i * Merkle.NODE_SIZE, hashes, (i + 1) * Merkle.NODE_SIZE, hashes, i / 2 * Merkle.NODE_SIZE);
+        if (width % 2 == 1) System.arraycopy(hashes, (width - 1) * Merkle.NODE_SIZE, hashes, width / 2 * Merkle.NODE_SIZE, Merkle.NODE_SIZE);
+    }
+}
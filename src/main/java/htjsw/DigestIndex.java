@@ -0,0 +1,266 @@
+package htjsw;
+
+import java.util.Arrays;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Ordered list of message hashes with constant time lookup of a hash's first position.
+ * hashes are stored back to back in one byte array,
+ * the lookup table is an open-addressing int array keyed on the hash bytes themselves
+ * @author F. Krause
+ */
+class DigestIndex {
+
+    /**
+     * size of a stored hash in bytes
+     */
+    private static final int KEY_SIZE = Merkle.NODE_SIZE;
+
+    /**
+     * largest array size most VMs can allocate
+     */
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * largest number of hashes whose bytes fit into one array
+     */
+    static final int MAX_SIZE = (int) (MAX_ARRAY_SIZE / KEY_SIZE);
+
+    /**
+     * all added hashes in order of insertion, KEY_SIZE bytes each
+     */
+    private byte[] keys;
+
+    /**
+     * number of added hashes
+     */
+    private int size;
+
+    /**
+     * lookup table, holding (position + 1) of the first occurrence of a hash, 0 for empty slots
+     */
+    private int[] slots;
+
+    /**
+     * Base Constructor
+     */
+    DigestIndex() {
+
+        this(16);
+    }
+
+    /**
+     * Constructor with initial capacity
+     * @param capacity number of hashes that can be added before growing
+     * @throws IllegalStateException if the capacity exceeds {@link #MAX_SIZE}
+     */
+    DigestIndex(int capacity) throws IllegalStateException {
+
+        capacity = (int) checkCapacity(Math.max(capacity, 16));
+        this.keys = new byte[capacity * KEY_SIZE];
+        this.slots = new int[Integer.highestOneBit(capacity - 1) << 2];
+        this.size = 0;
+    }
+
+    /**
+     * Getter for size
+     * @return number of added hashes, including duplicates
+     */
+    int size() {
+
+        return this.size;
+    }
+
+    /**
+     * copies the hash at the given position
+     * @param position insertion position
+     * @return hash bytes
+     */
+    byte[] get(int position) {
+        if (position < 0 || position >= size) throw new IndexOutOfBoundsException(position);
+
+        return Arrays.copyOfRange(keys, position * KEY_SIZE, (position + 1) * KEY_SIZE);
+    }
+
+    /**
+     * reads the first four bytes of the hash at the given position, a well distributed slot index for lookup tables
+     * @param position insertion position
+     * @return leading hash bytes as big endian int
+     */
+    int prefix(int position) {
+
+        return prefix(keys, position * KEY_SIZE);
+    }
+
+    /**
+     * compares the hash at the given position to a hash in a buffer
+     * @param position insertion position
+     * @param buf buffer containing the hash
+     * @param off offset of the hash in buf
+     * @return true if both hashes are equal
+     */
+    boolean matches(int position, byte[] buf, int off) {
+
+        int key = position * KEY_SIZE;
+        return Arrays.equals(keys, key, key + KEY_SIZE, buf, off, off + KEY_SIZE);
+    }
+
+    /**
+     * compares the hash at the given position to a hash of another index
+     * @param position insertion position
+     * @param other index containing the other hash
+     * @param otherPosition insertion position in the other index
+     * @return true if both hashes are equal
+     */
+    boolean matches(int position, DigestIndex other, int otherPosition) {
+
+        return matches(position, other.keys, otherPosition * KEY_SIZE);
+    }
+
+    /**
+     * appends a hash
+     * @param digest hash bytes
+     * @return position of the added hash
+     * @throws IllegalStateException if the index already holds {@link #MAX_SIZE} hashes
+     */
+    int add(byte[] digest) throws IllegalStateException {
+
+        return add(digest, 0);
+    }
+
+    /**
+     * appends a hash from a buffer. if the hash is already contained,
+     * lookups keep returning the position of its first occurrence
+     * @param buf buffer containing the hash
+     * @param off offset of the hash in buf
+     * @return position of the added hash
+     * @throws IllegalStateException if the index already holds {@link #MAX_SIZE} hashes
+     */
+    int add(byte[] buf, int off) throws IllegalStateException {
+
+        if ((size + 1L) * KEY_SIZE > keys.length) {
+
+            // double in long arithmetic and stop at the largest array, which holds MAX_SIZE hashes
+            checkCapacity(size + 1L);
+            keys = Arrays.copyOf(keys, (int) Math.min(Math.max(keys.length * 2L, KEY_SIZE * 16L), (long) MAX_SIZE * KEY_SIZE));
+        }
+        if ((size + 1L) * 2 > slots.length) rehash(slots.length * 2);
+
+        int position = size++;
+        System.arraycopy(buf, off, keys, position * KEY_SIZE, KEY_SIZE);
+
+        int slot = find(keys, position * KEY_SIZE);
+        if (slots[slot] == 0) slots[slot] = position + 1;
+
+        return position;
+    }
+
+    /**
+     * ensures that the given total number of hashes fits without growing
+     * @param capacity total number of hashes
+     * @throws IllegalStateException if the capacity exceeds {@link #MAX_SIZE}
+     */
+    void ensureCapacity(long capacity) throws IllegalStateException {
+
+        int checked = (int) checkCapacity(capacity);
+        if ((long) checked * KEY_SIZE > keys.length) keys = Arrays.copyOf(keys, checked * KEY_SIZE);
+        if (checked * 2L > slots.length) rehash(Integer.highestOneBit(checked - 1) << 2);
+    }
+
+    /**
+     * checks that a number of hashes fits into the key array
+     * @param capacity total number of hashes
+     * @return the unchanged capacity
+     * @throws IllegalStateException if the capacity exceeds {@link #MAX_SIZE}
+     */
+    private static long checkCapacity(long capacity) throws IllegalStateException {
+        if (capacity > MAX_SIZE) throw new IllegalStateException("Index cannot hold more than " + MAX_SIZE + " hashes, " + capacity + " requested");
+
+        return capacity;
+    }
+
+    /**
+     * looks up the first position of a hash
+     * @param digest hash bytes
+     * @return insertion position, or -1 if it is not contained
+     */
+    int indexOf(byte[] digest) {
+
+        return indexOf(digest, 0);
+    }
+
+    /**
+     * looks up the first position of a hash in a buffer
+     * @param buf buffer containing the hash
+     * @param off offset of the hash in buf
+     * @return insertion position, or -1 if it is not contained
+     */
+    int indexOf(byte[] buf, int off) {
+
+        return slots[find(buf, off)] - 1;
+    }
+
+    /**
+     * linear probing for the slot that holds the given hash or the empty slot it belongs in
+     * @param buf buffer containing the hash
+     * @param off offset of the hash in buf
+     * @return slot index
+     */
+    private int find(byte[] buf, int off) {
+
+        int mask = slots.length - 1;
+
+        // hashes are uniformly distributed already, so their first bytes make a good slot index
+        int slot = prefix(buf, off) & mask;
+
+        while (slots[slot] != 0) {
+
+            int key = (slots[slot] - 1) * KEY_SIZE;
+            if (Arrays.equals(keys, key, key + KEY_SIZE, buf, off, off + KEY_SIZE)) break;
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * reads the first four bytes of a hash
+     * @param buf buffer containing the hash
+     * @param off offset of the hash in buf
+     * @return leading hash bytes as big endian int
+     */
+    static int prefix(byte[] buf, int off) {
+
+        return (buf[off] & 0xff) << 24 | (buf[off + 1] & 0xff) << 16 | (buf[off + 2] & 0xff) << 8 | (buf[off + 3] & 0xff);
+    }
+
+    /**
+     * rebuilds the lookup table with a new size, keeping first occurrences
+     * @param length new table size, a power of two
+     */
+    private void rehash(int length) {
+
+        this.slots = new int[length];
+        for (int i = 0; i < size; i++) {
+
+            int slot = find(keys, i * KEY_SIZE);
+            if (slots[slot] == 0) slots[slot] = i + 1;
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package htjsw;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * pipeline adding all files below a directory, or a given list of files, to a {@link Merkle} or {@link MerkleForest}.
+ * the directory is walked lazily, depth first and sorted by name within each directory, so the order is the same on every run.
+ * files are read on a pool of I/O threads and hashed on a separate pool of hashing threads,
+ * at most {@link #getWindow()} files are in flight at any time and their digests are added strictly in order.
+ * small files are read at once, larger ones in chunks of {@link #CHUNK_SIZE} bytes that are handed over to be hashed
+ * while the next chunk is read, with at most two chunks per file waiting.
+ * memory use therefore depends on the window and the chunk size, but not on the number of files.
+ * trees in chunked leaf mode (see {@link Merkle#setChunkSize(int)}) get chunk tree leaves for files longer than their chunk size,
+ * the chunks of such a file are read with positional reads through a small buffer per hashing thread and hashed in parallel,
+ * with up to one chunk per hashing thread in flight, so their memory use does not depend on the chunk size either
+ * @author F. Krause
+ */
+public class DirectorySigner {
+
+    /**
+     * size of the chunks files are read in, files up to this size are read at once
+     */
+    public static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * listener notified about every file added to the tree, on the thread calling add
+     */
+    @FunctionalInterface
+    public interface FileListener {
+
+        /**
+         * called once a file has been added
+         * @param index order index of the file within this run, starting at 0
+         * @param file the file
+         * @param size number of bytes hashed
+         */
+        void added(int index, Path file, long size);
+    }
+
+    /**
+     * number of threads reading files
+     */
+    private final int ioThreads;
+
+    /**
+     * number of threads hashing file content
+     */
+    private final int hashThreads;
+
+    /**
+     * maximum number of files being read or hashed at the same time
+     */
+    private final int window;
+
+    /**
+     * listener notified about every added file, null for none
+     */
+    private @Nullable FileListener listener;
+
+    /**
+     * Constructor with 4 I/O threads, one hashing thread per processor and a window of four files per thread
+     */
+    public DirectorySigner() {
+
+        this(4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor with a window of four files per thread
+     * @param ioThreads number of threads reading files
+     * @param hashThreads number of threads hashing file content
+     * @throws IllegalArgumentException if a thread count is smaller than 1
+     */
+    public DirectorySigner(int ioThreads, int hashThreads) throws IllegalArgumentException {
+
+        this(ioThreads, hashThreads, 4 * (ioThreads + hashThreads));
+    }
+
+    /**
+     * Constructor
+     * @param ioThreads number of threads reading files
+     * @param hashThreads number of threads hashing file content
+     * @param window maximum number of files being read or hashed at the same time
+     * @throws IllegalArgumentException if a thread count or the window is smaller than 1
+     */
+    public DirectorySigner(int ioThreads, int hashThreads, int window) throws IllegalArgumentException {
+        if (ioThreads < 1 || hashThreads < 1) throw new IllegalArgumentException("Thread counts must be positive");
+        if (window < 1) throw new IllegalArgumentException("Window must be positive");
+
+        this.ioThreads = ioThreads;
+        this.hashThreads = hashThreads;
+        this.window = window;
+    }
+
+    /**
+     * Getter for the number of threads reading files
+     * @return I/O thread count
+     */
+    public int getIOThreads() {
+
+        return this.ioThreads;
+    }
+
+    /**
+     * Getter for the number of threads hashing file content
+     * @return hashing thread count
+     */
+    public int getHashThreads() {
+
+        return this.hashThreads;
+    }
+
+    /**
+     * Getter for the maximum number of files in flight
+     * @return window size
+     */
+    public int getWindow() {
+
+        return this.window;
+    }
+
+    /**
+     * Setter for the listener notified about every added file
+     * @param listener listener, null for none
+     */
+    public void setListener(@Nullable FileListener listener) {
+
+        this.listener = listener;
+    }
+
+    /**
+     * adds all regular files below a directory to a structure, honouring its hash function and chunk size
+     * @param directory directory to walk
+     * @param merkle open structure
+     * @return number of added files
+     * @throws IOException if the directory cannot be walked or a file cannot be read, files before it have been added
+     * @throws IllegalStateException if the structure is already closed
+     */
+    public int add(Path directory, Merkle merkle) throws IOException, IllegalStateException {
+
+        return feed(walk(directory), merkle.getHashAlgorithm(), merkle.getChunkSize(), merkle::addDigest);
+    }
+
+    /**
+     * adds the given files to a structure in list order, honouring its hash function and chunk size
+     * @param files regular files
+     * @param merkle open structure
+     * @return number of added files
+     * @throws IOException if a file cannot be read, files before it have been added
+     * @throws IllegalStateException if the structure is already closed
+     */
+    public int add(List<Path> files, Merkle merkle) throws IOException, IllegalStateException {
+
+        return feed(files.iterator(), merkle.getHashAlgorithm(), merkle.getChunkSize(), merkle::addDigest);
+    }
+
+    /**
+     * adds all regular files below a directory to a forest, honouring its hash function
+     * @param directory directory to walk
+     * @param forest open forest
+     * @return number of added files
+     * @throws IOException if the directory cannot be walked or a file cannot be read, files before it have been added
+     * @throws IllegalStateException if the forest is already closed
+     */
+    public int add(Path directory, MerkleForest forest) throws IOException, IllegalStateException {
+
+        return feed(walk(directory), forest.getHashAlgorithm(), 0, forest::addDigest);
+    }
+
+    /**
+     * starts the walk of a directory
+     * @param directory directory to walk
+     * @return lazy iterator over the regular files below the directory
+     * @throws IOException if the path is no directory or cannot be listed
+     */
+    private static Iterator<Path> walk(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) throw new NotDirectoryException(directory.toString());
+
+        return new Walker(directory);
+    }
+
+    /**
+     * runs the pipeline
+     * @param files files to add, in order
+     * @param hash hash function of the structure
+     * @param chunkSize chunk size of chunked leaf mode, 0 for plain leaves
+     * @param sink takes the digests in order
+     * @return number of added files
+     * @throws IOException if a directory cannot be walked or a file cannot be read
+     */
+    private int feed(Iterator<Path> files, HashAlgorithm hash, int chunkSize, Consumer<byte[]> sink) throws IOException {
+
+        ExecutorService io = pool(ioThreads, "directory-signer-io");
+        ExecutorService cpu = pool(hashThreads, "directory-signer-hash");
+        try {
+            ArrayDeque<Pending> pending = new ArrayDeque<>(window);
+            int count = 0;
+
+            while (files.hasNext() || !pending.isEmpty()) {
+
+                while (files.hasNext() && pending.size() < window) {
+
+                    Path file = files.next();
+                    pending.add(new Pending(file, CompletableFuture
+                            .supplyAsync(() -> chunkSize != 0 && size(file) > chunkSize ? chunked(file, hash, chunkSize, cpu) : digest(file, hash, cpu), io)
+                            .thenCompose(digest -> digest)));
+                }
+
+                Pending head = pending.poll();
+                Digested digested = await(head);
+                sink.accept(digested.digest());
+
+                if (listener != null) listener.added(count, head.file(), digested.size());
+                count++;
+            }
+            return count;
+
+        } catch (UncheckedIOException e) {
+
+            // from walking the directory
+            throw e.getCause();
+
+        } finally {
+
+            io.shutdownNow();
+            cpu.shutdownNow();
+        }
+    }
+
+    /**
+     * file in flight
+     * @param file the file
+     * @param result digest, once read and hashed
+     */
+    private record Pending(Path file, CompletableFuture<Digested> result) {
+    }
+
+    /**
+     * hashed file
+     * @param digest hash over the file content
+     * @param size number of bytes hashed
+     */
+    private record Digested(byte[] digest, long size) {
+    }
+
+    /**
+     * waits for a file in flight
+     * @param pending the file
+     * @return its digest
+     * @throws IOException if the file could not be read or the thread is interrupted
+     */
+    private static Digested await(Pending pending) throws IOException {
+
+        try {
+            return pending.result().get();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + pending.file());
+
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException io) throw io.getCause();
+            throw new IOException("Unable to hash " + pending.file(), cause);
+        }
+    }
+
+    /**
+     * reads a file on an I/O thread and hands its content to the hashing pool,
+     * blocking the I/O thread while more than two chunks of a large file wait to be hashed
+     * @param file file to read
+     * @param hash hash function
+     * @param cpu hashing pool
+     * @return digest, completed on the hashing pool
+     * @throws UncheckedIOException if the file cannot be read
+     */
+    private static CompletableFuture<Digested> digest(Path file, HashAlgorithm hash, ExecutorService cpu) throws UncheckedIOException {
+
+        try {
+            if (Files.size(file) <= CHUNK_SIZE) {
+
+                byte[] content = Files.readAllBytes(file);
+                return CompletableFuture.supplyAsync(() -> new Digested(hash.digest().digest(content), content.length), cpu);
+            }
+
+            // chunks of one file are hashed one after the other, each on whichever hashing thread is free
+            MessageDigest md = newDigest(hash);
+            CompletableFuture<Void> last = CompletableFuture.completedFuture(null), previous = last;
+            long size = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+
+                byte[] chunk;
+                while ((chunk = in.readNBytes(CHUNK_SIZE)).length > 0) {
+
+                    previous.join();
+                    byte[] bytes = chunk;
+                    previous = last;
+                    last = last.thenRunAsync(() -> md.update(bytes), cpu);
+                    size += bytes.length;
+                }
+            }
+            long total = size;
+            return last.thenApply(done -> new Digested(md.digest(), total));
+
+        } catch (IOException e) {
+
+            throw new UncheckedIOException("Unable to read " + file, e);
+        }
+    }
+
+    /**
+     * hashes a file in chunked leaf mode, handing one chunk after the other to the hashing pool,
+     * blocking the I/O thread while one chunk per hashing thread waits to be hashed.
+     * each chunk is read by the hashing thread with positional reads into its small buffer (see {@link ChunkTree#hashChunk}),
+     * so no chunk is held in memory, whatever the chunk size
+     * @param file file to read, longer than a chunk
+     * @param hash hash function
+     * @param chunkSize chunk size of chunked leaf mode
+     * @param cpu hashing pool
+     * @return chunk tree root, completed on the hashing pool
+     * @throws UncheckedIOException if the file cannot be read
+     */
+    private CompletableFuture<Digested> chunked(Path file, HashAlgorithm hash, int chunkSize, ExecutorService cpu) throws UncheckedIOException {
+
+        FileChannel channel;
+        long size;
+        int count;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                size = channel.size();
+                count = ChunkTree.chunkCount(size, chunkSize);
+
+            } catch (IOException | IllegalArgumentException e) {
+
+                close(channel);
+                throw e;
+            }
+
+        } catch (IOException e) {
+
+            throw new UncheckedIOException("Unable to read " + file, e);
+        }
+
+        byte[] hashes = new byte[count * Merkle.NODE_SIZE];
+        ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>(hashThreads);
+        List<CompletableFuture<Void>> all = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+
+            // failures surface through the combined future below
+            if (waiting.size() == hashThreads) waiting.poll().exceptionally(failure -> null).join();
+            int i = index;
+            long from = (long) i * chunkSize;
+            CompletableFuture<Void> hashed = CompletableFuture.runAsync(() -> {
+                try {
+                    ChunkTree.hashChunk(hash.digest(), channel, from, Math.min(from + chunkSize, size), i, hashes);
+
+                } catch (IOException e) {
+
+                    throw new UncheckedIOException("Unable to read " + file, e);
+                }
+            }, cpu);
+            waiting.add(hashed);
+            all.add(hashed);
+        }
+
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture[0]))
+                .whenComplete((done, failure) -> close(channel))
+                .thenApplyAsync(done -> new Digested(ChunkTree.root(hash.digest(), hashes, count), size), cpu);
+    }
+
+    /**
+     * closes a file channel, ignoring failures as all reads are done
+     * @param channel channel to close
+     */
+    private static void close(FileChannel channel) {
+
+        try {
+            channel.close();
+
+        } catch (IOException ignored) {
+            // nothing left to read
+        }
+    }
+
+    /**
+     * Getter for the size of a file
+     * @param file the file
+     * @return size in bytes
+     * @throws UncheckedIOException if the size cannot be read
+     */
+    private static long size(Path file) throws UncheckedIOException {
+
+        try {
+            return Files.size(file);
+
+        } catch (IOException e) {
+
+            throw new UncheckedIOException("Unable to read " + file, e);
+        }
+    }
+
+    /**
+     * creates a new digest, chunked files need their own as they move between hashing threads
+     * @param hash hash function
+     * @return digest
+     */
+    private static MessageDigest newDigest(HashAlgorithm hash) {
+
+        try {
+            return hash.newDigest(null);
+
+        } catch (NoSuchAlgorithmException e) {
+
+            throw new IllegalStateException(hash.getJCAName() + " not supported", e);
+        }
+    }
+
+    /**
+     * creates a fixed pool of daemon threads
+     * @param threads thread count
+     * @param name thread name
+     * @return pool
+     */
+    private static ExecutorService pool(int threads, String name) {
+
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * lazy depth first walk returning the regular files below a directory, sorted by name within each directory.
+     * only the entries of the directories along the current branch are held in memory.
+     * symbolic links to files are included, those to directories are not followed
+     */
+    private static class Walker implements Iterator<Path> {
+
+        /**
+         * remaining entries of each directory along the current branch
+         */
+        private final ArrayDeque<Iterator<Path>> stack = new ArrayDeque<>();
+
+        /**
+         * next file, null if not looked up yet or none left
+         */
+        private @Nullable Path next;
+
+        /**
+         * Constructor
+         * @param root directory to walk
+         * @throws IOException if the directory cannot be listed
+         */
+        Walker(Path root) throws IOException {
+
+            stack.push(list(root));
+        }
+
+        /**
+         * lists a directory sorted by name
+         * @param dir directory
+         * @return iterator over the sorted entries
+         * @throws IOException if the directory cannot be listed
+         */
+        private static Iterator<Path> list(Path dir) throws IOException {
+
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+
+                for (Path entry : stream) entries.add(entry);
+            }
+            entries.sort(Comparator.comparing(entry -> entry.getFileName().toString()));
+            return entries.iterator();
+        }
+
+        /**
+         * advances to the next regular file
+         * @return true if there is one
+         * @throws UncheckedIOException if a directory cannot be listed
+         */
+        @Override
+        public boolean hasNext() throws UncheckedIOException {
+
+            while (next == null && !stack.isEmpty()) {
+
+                Iterator<Path> entries = stack.peek();
+                if (!entries.hasNext()) {
+
+                    stack.pop();
+                    continue;
+                }
+
+                Path entry = entries.next();
+                try {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) stack.push(list(entry));
+                    else if (Files.isRegularFile(entry)) next = entry;
+
+                } catch (IOException e) {
+
+                    throw new UncheckedIOException("Unable to list " + entry, e);
+                }
+            }
+            return next != null;
+        }
+
+        /**
+         * Getter for the next regular file
+         * @return file
+         * @throws NoSuchElementException if there is none left
+         */
+        @Override
+        public Path next() throws NoSuchElementException {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            Path file = next;
+            next = null;
+            return file;
+        }
+    }
+}
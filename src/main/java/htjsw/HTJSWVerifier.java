@@ -5,18 +5,23 @@ import com.nimbusds.jose.jca.JCAContext;
 import com.nimbusds.jose.util.Base64;
 import com.nimbusds.jose.util.Base64URL;
 import org.jetbrains.annotations.Nullable;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.Set;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 // @TODO test with wrong signatures
 /*
@@ -42,17 +47,48 @@ import java.util.Set;
  */
 public class HTJSWVerifier implements JWSVerifier {
 
+    /**
+     * maximum number of header certificate chains kept parsed
+     */
+    public static final int CERT_CACHE_SIZE = 256;
+
     /**
      * Certificate used for verification
      */
     private @Nullable X509Certificate cert;
 
+    /**
+     * Base64 encoding of the dedicated Certificate, compared against the header's x5c
+     */
+    private @Nullable Base64 certEncoded;
+
+    /**
+     * parsed certificate chains from JWS headers
+     */
+    private final CertCache certCache = new CertCache(CERT_CACHE_SIZE);
+
+    /**
+     * maximum number of public keys each thread keeps an initialised Signature for
+     */
+    private static final int SIGNATURES_PER_THREAD = 16;
+
+    /**
+     * JCA provider and SecureRandom used for verification, the default provider if none is set
+     */
+    private final JCAContext jcaContext = new JCAContext();
+
+    /**
+     * per-thread digest and Signature instances, shared by all verifiers that use the same provider
+     */
+    private static final ThreadLocal<ThreadCrypto> crypto = ThreadLocal.withInitial(ThreadCrypto::new);
+
     /**
      * Constructor for Verifier without dedicated Certificate
      */
     public HTJSWVerifier() {
 
         this.cert = null;
+        this.certEncoded = null;
     }
 
     /**
@@ -62,8 +98,7 @@ public class HTJSWVerifier implements JWSVerifier {
      */
     public HTJSWVerifier(Certificate cert) throws CertificateException {
 
-        this.cert = (X509Certificate) cert;
-        this.cert.checkValidity();
+        setCert(cert);
     }
 
     /**
@@ -103,12 +138,19 @@ public class HTJSWVerifier implements JWSVerifier {
      */
     public void setCert(Certificate cert) throws CertificateException {
 
-        this.cert = (X509Certificate) cert;
-        this.cert.checkValidity();
+        X509Certificate x509 = (X509Certificate) cert;
+        x509.checkValidity();
+
+        this.certEncoded = Base64.encode(x509.getEncoded());
+        this.cert = x509;
     }
 
     /**
-     * verification algorithm for a JWS with Hashtree ECDSA SHA256 signature
+     * verification algorithm for a JWS with Hashtree ECDSA SHA256 or Ed25519 signature (padded or unpadded tree).
+     * paths are folded with the hash function named by the algorithm identifier, see {@link HashAlgorithm},
+     * and the root signature is checked with the algorithm its prefix names, see {@link SignatureAlgorithm}.
+     * JWSs from trees in chunked leaf mode carry the chunk size in their "ht_chunk" header,
+     * those proving a single chunk additionally carry its index in "ht_chunk_index"
      * @param header Header of the JWS
      * @param signingInput the JWS "signing input",
      *                     containing Header and Payload encoded as Base64URL in Header.Payload format,
@@ -120,71 +162,344 @@ public class HTJSWVerifier implements JWSVerifier {
     @Override
     public boolean verify(JWSHeader header, byte[] signingInput, Base64URL signature) throws JOSEException {
 
-        if (!header.getAlgorithm().equals(JWSAlgorithm.parse("HTES256"))) throw new JOSEException("invalid algorithm");
+        HashAlgorithm hash = checkAlgorithm(header);
+        SignatureAlgorithm algorithm = SignatureAlgorithm.fromAlgorithm(header.getAlgorithm().getName());
 
         try {
 
-            X509Certificate certificate;
-            if (this.cert != null &&
-                    Base64.encode(this.cert.getEncoded())
-                            .equals(
-                                    header.getX509CertChain().get(0)
-                            )
-            )  certificate = this.cert;
-            else {
+            PublicKey key = publicKey(header);
 
-                //parse certificate from header
-                ByteArrayOutputStream certstrm = new ByteArrayOutputStream();
+            ThreadCrypto crypto = crypto();
+            crypto.parser.parse(signingInput, signature.toString(), crypto.digest(hash), chunkSize(header), chunkIndex(header));
 
-                for (Base64 link : header.getX509CertChain())
-                    certstrm.write(link.decode());
+            return verifyRoot(algorithm, key, crypto.parser.root(), crypto.parser.signature(), crypto.parser.signatureLength());
 
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(certstrm.toByteArray());
-                certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(inputStream);
-                certificate.checkValidity();
+        } catch (IOException | CertificateException | InvalidKeyException | NoSuchAlgorithmException | SignatureException e) {
+
+            e.printStackTrace();
+            throw new JOSEException("Certificate Instantiation error");
+
+        }
+    }
+
+    /**
+     * verifies many JWSs at once on the common ForkJoinPool
+     * @param jwss parsed JWSs
+     * @return verification result for each JWS, in the same order
+     * @see #verifyAll(List, ForkJoinPool)
+     */
+    public boolean[] verifyAll(List<JWSObject> jwss) {
+
+        return verifyAll(jwss, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * verifies many JWSs at once.
+     * the root of every path is computed in parallel, the JWSs are then grouped by certificate, root and signature,
+     * so each distinct root signature is only checked once (JWSs from the same tree share one signature verification)
+     * @param jwss parsed JWSs
+     * @param pool pool to run the verification on
+     * @return verification result for each JWS, in the same order.
+     *         JWSs that are malformed or use another algorithm count as failed
+     */
+    public boolean[] verifyAll(List<JWSObject> jwss, ForkJoinPool pool) {
+
+        return verifyAll(jwss.size(), jwss::get, pool);
+    }
+
+    /**
+     * reads and verifies many JWS files at once on the common ForkJoinPool
+     * @param files files containing one compact serialized JWS each
+     * @return verification result for each file, in the same order.
+     *         files that cannot be read or parsed count as failed
+     * @see #verifyAll(List, ForkJoinPool)
+     */
+    public boolean[] verifyAll(Collection<Path> files) {
+
+        return verifyAll(files, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * reads and verifies many JWS files at once, reading them in parallel on the given pool
+     * @param files files containing one compact serialized JWS each
+     * @param pool pool to read and verify on
+     * @return verification result for each file, in the same order.
+     *         files that cannot be read or parsed count as failed
+     * @see #verifyAll(List, ForkJoinPool)
+     */
+    public boolean[] verifyAll(Collection<Path> files, ForkJoinPool pool) {
+
+        Path[] paths = files.toArray(new Path[0]);
+        return verifyAll(paths.length, i -> {
+            try {
+                return JWSObject.parse(Files.readString(paths[i]));
+
+            } catch (IOException | ParseException e) {
+
+                return null;
             }
+        }, pool);
+    }
 
-            //initialise Signature Object for verification
-            Signature versig = Signature.getInstance("SHA256withECDSA");
-            versig.initVerify(certificate.getPublicKey());
+    /**
+     * batch verification over JWSs supplied by index, see {@link #verifyAll(List, ForkJoinPool)}
+     * @param count number of JWSs
+     * @param source supplier of the JWS at an index, may return null for unreadable ones
+     * @param pool pool to run the verification on
+     * @return verification result for each JWS
+     */
+    private boolean[] verifyAll(int count, IntFunction<JWSObject> source, ForkJoinPool pool) {
 
-            //load message from signing Input
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        RootKey[] keys = new RootKey[count];
 
-            Payload msg = new Payload(new Base64URL(new String(signingInput, StandardCharsets.UTF_8).split("\\.")[1]));
-            byte[] msghash = digest.digest(msg.toBytes());
+        // the first header per distinct signature is kept for parsing the certificate,
+        // every JWS only keeps a reference to the key shared by its group, so memory grows with the distinct roots
+        Map<RootKey, Group> distinct = new ConcurrentHashMap<>();
 
-            //parse signature
-            JSONObject sig = new JSONObject(signature.decodeToString());
-            JSONArray jsnpath = sig.getJSONArray("ht_path");
-            String[] b64path = Arrays.copyOf(jsnpath.toList().toArray(), jsnpath.length(), String[].class);
+        // results are written by index, so the worker scheduling does not affect the order
+        pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, count).parallel().forEach(i -> {
 
-            byte[][] path = new byte[b64path.length][];
-            for (int i = 0; i < b64path.length; i++)
-                path[i] = Base64URL.from(b64path[i]).decode();
+            JWSObject jws = source.apply(i);
+            if (jws == null) return;
 
-            //calculate root hash
-            for (byte[] hash : path)
-                if (hash[0] == (byte) '-')
-                    msghash = Merkle.concatHash(Arrays.copyOfRange(hash, 1, hash.length), msghash);
-                else
-                    msghash = Merkle.concatHash(msghash, hash);
+            RootKey key = rootKey(jws);
+            if (key != null) keys[i] = distinct.computeIfAbsent(key, first -> new Group(first, jws.getHeader())).key();
+        })));
 
-            //verify root signature using root hash
-            versig.update(msghash);
-            return versig.verify(Base64URL.from(sig.getString("ecdsa_sig")).decode());
+        Map<RootKey, Boolean> verified = new ConcurrentHashMap<>();
+        pool.invoke(ForkJoinTask.adapt(() -> distinct.values().parallelStream().forEach(group -> {
+            try {
+                RootKey key = group.key();
+                byte[] signature = key.signature().decode();
+                verified.put(key, verifyRoot(key.algorithm(), publicKey(group.header()), key.root().decode(), signature, signature.length));
 
-        } catch (Merkle.ConcatException e) {
+            } catch (IOException | CertificateException | InvalidKeyException | NoSuchAlgorithmException | SignatureException | RuntimeException e) {
 
-            System.err.println("Concat Error");
-            e.printStackTrace();
-            throw new JOSEException("Failed to calculate root");
+                verified.put(group.key(), false);
+            }
+        })));
 
-        } catch (IOException | CertificateException | InvalidKeyException | NoSuchAlgorithmException | SignatureException e) {
+        boolean[] results = new boolean[count];
+        for (int i = 0; i < count; i++) results[i] = keys[i] != null && verified.get(keys[i]);
+        return results;
+    }
 
-            e.printStackTrace();
-            throw new JOSEException("Certificate Instantiation error");
+    /**
+     * identifies the signed root a JWS's path leads to
+     * @param algorithm algorithm of the root signature
+     * @param chain x5c header value, one String per certificate
+     * @param root root computed from payload and path
+     * @param signature signature over the root
+     */
+    private record RootKey(SignatureAlgorithm algorithm, List<String> chain, Base64URL root, Base64URL signature) {}
 
+    /**
+     * JWSs sharing one signed root
+     * @param key the root key, shared by all of them
+     * @param header header of the first of them, for parsing the certificate
+     */
+    private record Group(RootKey key, JWSHeader header) {}
+
+    /**
+     * computes the root a JWS's path leads to
+     * @param jws parsed JWS
+     * @return identification of the signed root, or null if the JWS is malformed or uses another algorithm
+     */
+    private @Nullable RootKey rootKey(JWSObject jws) {
+        try {
+            HashAlgorithm hash = checkAlgorithm(jws.getHeader());
+            if (jws.getHeader().getX509CertChain() == null) return null;
+
+            ThreadCrypto crypto = crypto();
+            SigPartParser parser = crypto.parser;
+            JWSHeader header = jws.getHeader();
+            parser.parse(jws.getSigningInput(), jws.getSignature().toString(), crypto.digest(hash), chunkSize(header), chunkIndex(header));
+
+            return new RootKey(
+                    SignatureAlgorithm.fromAlgorithm(header.getAlgorithm().getName()),
+                    jws.getHeader().getX509CertChain().stream().map(Base64::toString).toList(),
+                    Base64URL.encode(parser.root()),
+                    Base64URL.encode(Arrays.copyOf(parser.signature(), parser.signatureLength()))
+            );
+
+        } catch (JOSEException | NoSuchAlgorithmException | RuntimeException e) {
+
+            return null;
+        }
+    }
+
+    /**
+     * checks that the JWS uses one of the hashtree algorithms.
+     * unpadded trees promote lone nodes without a path entry, so both shapes fold the same way
+     * @param header Header of the JWS
+     * @return hash function to fold the path with
+     * @throws JOSEException if the algorithm is not supported
+     */
+    private static HashAlgorithm checkAlgorithm(JWSHeader header) throws JOSEException {
+
+        try {
+            return HashAlgorithm.fromAlgorithm(header.getAlgorithm().getName());
+
+        } catch (IllegalArgumentException e) {
+
+            throw new JOSEException("invalid algorithm");
+        }
+    }
+
+    /**
+     * reads the chunk size of JWSs from trees in chunked leaf mode
+     * @param header Header of the JWS
+     * @return value of the "ht_chunk" header, 0 if there is none
+     * @throws JOSEException if the value is not a valid chunk size
+     */
+    private static int chunkSize(JWSHeader header) throws JOSEException {
+
+        Object value = header.getCustomParam("ht_chunk");
+        if (value == null) return 0;
+        if (!(value instanceof Number number) || !ChunkTree.validChunkSize(number.longValue()) || number.doubleValue() != number.longValue())
+            throw new JOSEException("invalid chunk size");
+
+        return number.intValue();
+    }
+
+    /**
+     * reads the chunk index of JWSs proving a single chunk of a message
+     * @param header Header of the JWS
+     * @return value of the "ht_chunk_index" header, -1 if there is none
+     * @throws JOSEException if the value is not a valid index or there is no chunk size
+     */
+    private static long chunkIndex(JWSHeader header) throws JOSEException {
+
+        Object value = header.getCustomParam("ht_chunk_index");
+        if (value == null) return -1;
+        if (!(value instanceof Number number) || number.longValue() < 0 || number.doubleValue() != number.longValue()
+                || header.getCustomParam("ht_chunk") == null)
+            throw new JOSEException("invalid chunk index");
+
+        return number.longValue();
+    }
+
+    /**
+     * picks the dedicated Certificate if it matches the header, otherwise takes the chain from the header,
+     * parsing it only if it is not cached already
+     * @param header Header of the JWS
+     * @return public key to verify with
+     * @throws IOException if the chain cannot be decoded
+     * @throws CertificateException if the Certificate is invalid
+     */
+    private PublicKey publicKey(JWSHeader header) throws IOException, CertificateException {
+
+        X509Certificate dedicated = this.cert;
+        if (dedicated != null && header.getX509CertChain().get(0).equals(this.certEncoded)) return dedicated.getPublicKey();
+
+        return certCache.get(header.getX509CertChain()).key();
+    }
+
+    /**
+     * parsed Certificate with its key
+     * @param certificate X.509 Certificate
+     * @param key public key of the Certificate
+     * @param notAfter end of the validity period in epoch milliseconds
+     */
+    private record CachedCert(X509Certificate certificate, PublicKey key, long notAfter) {}
+
+    /**
+     * bounded, thread-safe least recently used cache of parsed certificate chains,
+     * keyed by the SHA-256 hash of the x5c values. entries expire when their Certificate does
+     */
+    private static class CertCache {
+
+        /**
+         * entries in access order
+         */
+        private final LinkedHashMap<Base64URL, CachedCert> entries;
+
+        /**
+         * Constructor
+         * @param capacity maximum number of entries
+         */
+        CertCache(int capacity) {
+
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Base64URL, CachedCert> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        /**
+         * looks up a chain, parsing and adding it if it is not contained or has expired
+         * @param chain x5c header value
+         * @return parsed leaf Certificate
+         * @throws IOException if the chain cannot be decoded
+         * @throws CertificateException if the Certificate is invalid
+         */
+        CachedCert get(List<Base64> chain) throws IOException, CertificateException {
+
+            MessageDigest digest = HashAlgorithm.SHA256.digest();
+            for (Base64 link : chain) digest.update(link.toString().getBytes(StandardCharsets.US_ASCII));
+            Base64URL id = Base64URL.encode(digest.digest());
+
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+
+                CachedCert cached = entries.get(id);
+                if (cached != null && now <= cached.notAfter()) return cached;
+                entries.remove(id);
+            }
+
+            // parsed outside the lock, racing threads may parse the same chain twice, which is harmless
+            ByteArrayOutputStream certstrm = new ByteArrayOutputStream();
+
+            for (Base64 link : chain)
+                certstrm.write(link.decode());
+
+            ByteArrayInputStream inputStream = new ByteArrayInputStream(certstrm.toByteArray());
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(inputStream);
+            certificate.checkValidity();
+
+            CachedCert parsed = new CachedCert(certificate, certificate.getPublicKey(), certificate.getNotAfter().getTime());
+            synchronized (this) {
+
+                entries.put(id, parsed);
+            }
+
+            return parsed;
+        }
+    }
+
+    /**
+     * verifies the root signature
+     * @param algorithm algorithm of the root signature
+     * @param key public key of the signing Certificate
+     * @param root root hash
+     * @param signature buffer holding the signature over the root
+     * @param length length of the signature in the buffer
+     * @return true if the signature is valid
+     * @throws NoSuchAlgorithmException if the provider does not support the signature algorithm
+     * @throws InvalidKeyException if the Certificate does not hold a key of the algorithm
+     * @throws SignatureException if the signature cannot be processed
+     */
+    private boolean verifyRoot(SignatureAlgorithm algorithm, PublicKey key, byte[] root, byte[] signature, int length)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+
+        //this thread's Signature Object, already initialised for verification with this key
+        ThreadCrypto crypto = crypto();
+        SignerKey signer = new SignerKey(algorithm, key);
+        Signature versig = crypto.signature(signer);
+
+        //verify root signature using root hash
+        try {
+            versig.update(root);
+            return versig.verify(signature, 0, length);
+
+        } catch (SignatureException e) {
+
+            // do not reuse an instance that may be left in an undefined state
+            crypto.signatures.remove(signer);
+            throw e;
         }
     }
 
@@ -198,13 +513,115 @@ public class HTJSWVerifier implements JWSVerifier {
         return null;
     }
 
-    //unnecessary
     /**
-     * implementation of information method
-     * @return null
+     * implementation of information method.
+     * the returned context can be used to set the JCA provider for digests and signatures
+     * @return JCA context of this verifier
      */
     @Override
     public JCAContext getJCAContext() {
-        return null;
+        return this.jcaContext;
+    }
+
+    /**
+     * Getter for this thread's crypto instances, set up for the provider currently configured
+     * @return per-thread instances
+     */
+    private ThreadCrypto crypto() {
+
+        ThreadCrypto crypto = HTJSWVerifier.crypto.get();
+        crypto.use(this.jcaContext.getProvider());
+        return crypto;
+    }
+
+    /**
+     * identifies an initialised Signature, the same key may be claimed for another algorithm
+     * @param algorithm signature algorithm
+     * @param key public key
+     */
+    private record SignerKey(SignatureAlgorithm algorithm, PublicKey key) {}
+
+    /**
+     * digest and Signature instances of a single thread, bound to one provider.
+     * Signatures are kept initialised for the most recently used public keys,
+     * a Signature returns to this state after each verification
+     */
+    private static class ThreadCrypto {
+
+        /**
+         * provider the instances come from, null for the default provider
+         */
+        private @Nullable Provider provider;
+
+        /**
+         * digests by hash function, created on first use
+         */
+        private final EnumMap<HashAlgorithm, MessageDigest> digests = new EnumMap<>(HashAlgorithm.class);
+
+        /**
+         * parser for the signature part, with its reusable buffers
+         */
+        private final SigPartParser parser = new SigPartParser();
+
+        /**
+         * initialised Signatures by algorithm and public key, in access order
+         */
+        private final LinkedHashMap<SignerKey, Signature> signatures = new LinkedHashMap<>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SignerKey, Signature> eldest) {
+                return size() > SIGNATURES_PER_THREAD;
+            }
+        };
+
+        /**
+         * switches to another provider, dropping all instances of the previous one
+         * @param provider provider to use, null for the default provider
+         */
+        void use(@Nullable Provider provider) {
+            if (this.provider == provider) return;
+
+            this.provider = provider;
+            this.digests.clear();
+            this.signatures.clear();
+        }
+
+        /**
+         * Getter for the digest of a hash function
+         * @param hash hash function
+         * @return digest instance of this thread
+         * @throws NoSuchAlgorithmException if the provider does not support the hash function
+         */
+        MessageDigest digest(HashAlgorithm hash) throws NoSuchAlgorithmException {
+
+            MessageDigest digest = digests.get(hash);
+            if (digest == null) {
+
+                digest = hash.newDigest(provider);
+                digests.put(hash, digest);
+            }
+
+            return digest;
+        }
+
+        /**
+         * Getter for a Signature initialised for verification with the given key
+         * @param key signature algorithm and public key
+         * @return Signature Object
+         * @throws NoSuchAlgorithmException if the provider does not support the signature algorithm
+         * @throws InvalidKeyException if the key does not fit the signature algorithm
+         */
+        Signature signature(SignerKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+
+            Signature versig = signatures.get(key);
+            if (versig == null) {
+
+                versig = key.algorithm().newSignature(provider);
+                versig.initVerify(key.key());
+                signatures.put(key, versig);
+            }
+
+            return versig;
+        }
     }
 }
@@ -5,7 +5,14 @@ import com.nimbusds.jose.Payload;
 import com.nimbusds.jose.util.Base64URL;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
@@ -32,14 +39,13 @@ public abstract class HTJWSBuilder {
 
     /**
      * builds JWSobject for given message
-     * @param merkTree htjsw.Merkle Tree Structure that is closed and signed, containing msg
+     * @param merkTree signed Tree Structure (htjsw.Merkle or htjsw.MappedMerkle) containing msg
      * @param msg message to generate JWS for
      * @return JSON Web Signature of this message
-     * @throws Merkle.ConcatException if somewhere along the way the concatenation glitches
      * @throws ParseException if a part of the JWS fails to generate properly
      * @throws IllegalArgumentException if the given msg is not contained in the given Tree
      */
-    public static JWSObject genJWS(Merkle merkTree, byte[] msg) throws Merkle.ConcatException, ParseException, IllegalArgumentException {
+    public static JWSObject genJWS(SignedTree merkTree, byte[] msg) throws ParseException, IllegalArgumentException {
 
         return new JWSObject(
                 Base64URL.encode(
@@ -53,21 +59,71 @@ public abstract class HTJWSBuilder {
     }
 
     /**
-     * generates JWS Header with Algorithm and Certificate data
-     * @param merkTree htjsw.Merkle Hashtree Structure that has been initialised with a Certificate
+     * builds JWSobject proving a single chunk of a message signed in chunked leaf mode (see {@link Merkle#setChunkSize(int)}).
+     * the payload is only the chunk, its path through the message's chunk tree is passed in "ht_chunk_path",
+     * followed by the tree path on to the root in "ht_path",
+     * and the "ht_chunk_index" header names the chunk, so the byte range starting at index * chunk size can be verified
+     * without the rest of the message. all chunks of the file are read and hashed (in parallel) to build the path
+     * @param merkTree signed Tree Structure in chunked leaf mode containing the file's content
+     * @param file file containing the message
+     * @param chunk chunk index, starting at 0
+     * @return JSON Web Signature of this chunk
+     * @throws ParseException if a part of the JWS fails to generate properly
+     * @throws IllegalStateException if the given Hashtree is not closed and signed
+     * @throws IllegalArgumentException if the tree is not in chunked leaf mode, the file is not longer than a single chunk or not contained in the given Tree
+     * @throws IndexOutOfBoundsException if the file has no such chunk
+     * @throws IOException if the file cannot be read
+     */
+    public static JWSObject genChunkJWS(SignedTree merkTree, Path file, int chunk)
+            throws ParseException, IllegalStateException, IllegalArgumentException, IndexOutOfBoundsException, IOException {
+        int chunkSize = merkTree.getChunkSize();
+        if (chunkSize == 0) throw new IllegalArgumentException("Tree is not in chunked leaf mode");
+        if (Files.size(file) <= chunkSize) throw new IllegalArgumentException("File fits into a single chunk");
+        if (merkTree.getSignature() == null) throw new IllegalStateException("Tree is not properly signed");
+
+        HashAlgorithm hash = merkTree.getHashAlgorithm();
+        byte[] hashes = ChunkTree.hashes(file, chunkSize, hash, ForkJoinPool.commonPool());
+        int count = hashes.length / Merkle.NODE_SIZE;
+        if (chunk < 0 || chunk >= count) throw new IndexOutOfBoundsException(chunk);
+
+        int position = merkTree.lookupDigest(ChunkTree.root(hash.digest(), hashes.clone(), count));
+        if (position < 0) throw new IllegalArgumentException("File not contained in this tree");
+
+        String[] chunkPath = ChunkTree.path(hash.digest(), hashes, count, chunk);
+
+        return new JWSObject(
+                Base64URL.encode(
+                        genHeaderJSON(merkTree).put("ht_chunk_index", chunk).toString()
+                ),
+                new Payload(ChunkTree.readChunk(file, chunkSize, chunk)),
+                Base64URL.encode(
+                        new JSONObject()
+                                .put("ht_chunk_path", chunkPath)
+                                .put("ht_path", merkTree.getPath(position))
+                                .put("ecdsa_sig", merkTree.getSignature().toString())
+                                .toString()
+                )
+        );
+    }
+
+    /**
+     * generates JWS Header with Algorithm and Certificate data, and the chunk size for trees in chunked leaf mode
+     * @param merkTree Hashtree Structure that has been initialised with a Certificate
      * @return resulting JSON Object
      * @throws IllegalStateException if the given structure has not been initialised with a Certificate
      */
-    public static JSONObject genHeaderJSON(@NotNull Merkle merkTree) throws IllegalStateException {
-        if (merkTree.getStatus() == -1 || merkTree.cert == null)
-            throw new IllegalStateException("No Certificate has been initialised");
+    public static JSONObject genHeaderJSON(@NotNull SignedTree merkTree) throws IllegalStateException {
+        if (merkTree.getCert() == null) throw new IllegalStateException("No Certificate has been initialised");
 
-        return new JSONObject()
-                .put("alg", "HTES256")
+        JSONObject header = new JSONObject()
+                .put("alg", merkTree.getAlgorithm())
                 .put(
                         "x5c",
-                        new String[]{ merkTree.cert.toString() }
+                        new String[]{ merkTree.getCert().toString() }
                 );
+        if (merkTree.getChunkSize() != 0) header.put("ht_chunk", merkTree.getChunkSize());
+
+        return header;
     }
 
     /**
@@ -75,15 +131,118 @@ public abstract class HTJWSBuilder {
      * @param merkTree Hashtree Structure containing the Message, must be closed and signed
      * @param msg message to search and generate for
      * @return resulting JSON Object containing ht_path and ecdsa_sig over root
-     * @throws Merkle.ConcatException if concatenation glitches
      * @throws IllegalStateException if the given Hashtree is not closed and signed
      * @throws IllegalArgumentException if the given message is not contained in this hashtree
      */
-    public static JSONObject genSigJSON(Merkle merkTree, byte[] msg) throws Merkle.ConcatException, IllegalStateException, IllegalArgumentException {
+    public static JSONObject genSigJSON(SignedTree merkTree, byte[] msg) throws IllegalStateException, IllegalArgumentException {
         if (merkTree.getSignature() == null) throw new IllegalStateException("Tree is not properly signed");
 
         return new JSONObject()
                 .put("ht_path", merkTree.getPath(msg))
                 .put("ecdsa_sig", merkTree.getSignature().toString());
     }
+
+    /**
+     * builds JWSobjects for many messages at once, using a single {@link Batch} over the tree
+     * @param merkTree htjsw.Merkle Tree Structure that is closed and signed, containing all msgs
+     * @param msgs messages to generate JWSs for
+     * @return JSON Web Signatures of the messages, in the same order
+     * @throws ParseException if a part of a JWS fails to generate properly
+     * @throws IllegalArgumentException if one of the given msgs is not contained in the given Tree
+     */
+    public static List<JWSObject> genJWS(Merkle merkTree, Collection<byte[]> msgs) throws ParseException, IllegalArgumentException {
+
+        Batch batch = new Batch(merkTree);
+
+        List<JWSObject> jwss = new ArrayList<>(msgs.size());
+        for (byte[] msg : msgs) jwss.add(batch.genJWS(msg));
+
+        return jwss;
+    }
+
+    /**
+     * batch generator for JWSs of many messages from the same tree.
+     * extracts the paths of all messages in one sweep over the tree and encodes the header only once,
+     * the signature part of each message is encoded on every call and not kept, as every JWS is usually emitted once.
+     * a batch is a snapshot of one root signature: messages appended to the tree afterwards, and the signature
+     * renewed for them by {@link Merkle#resign()}, are not seen, build a new batch for those.
+     * instances may be used from multiple threads
+     */
+    public static class Batch {
+
+        /**
+         * closed and signed source tree
+         */
+        private final Merkle merkTree;
+
+        /**
+         * encoded JWS header, shared by all JWSs
+         */
+        private final Base64URL header;
+
+        /**
+         * paths of all messages, indexed by order index
+         */
+        private final String[][] paths;
+
+        /**
+         * root signature the paths belong to
+         */
+        private final String signature;
+
+        /**
+         * Constructor, extracting all paths
+         * @param merkTree htjsw.Merkle Tree Structure that is closed and signed
+         * @throws IllegalStateException if the given Hashtree is not closed and signed
+         */
+        public Batch(@NotNull Merkle merkTree) throws IllegalStateException {
+            if (merkTree.getSignature() == null) throw new IllegalStateException("Tree is not properly signed");
+
+            this.merkTree = merkTree;
+            this.signature = merkTree.getSignature().toString();
+            this.header = Base64URL.encode(genHeaderJSON(merkTree).toString());
+            this.paths = merkTree.getAllPaths();
+        }
+
+        /**
+         * builds JWSobject for given message
+         * @param msg message to generate JWS for
+         * @return JSON Web Signature of this message
+         * @throws ParseException if a part of the JWS fails to generate properly
+         * @throws IllegalArgumentException if the given msg is not contained in the tree or was appended after this batch was built
+         */
+        public JWSObject genJWS(byte[] msg) throws ParseException, IllegalArgumentException {
+
+            int position = merkTree.lookup(msg);
+            if (position < 0) throw new IllegalArgumentException("Message not contained in this tree");
+            if (position >= paths.length) throw new IllegalArgumentException("Message appended after this batch was built");
+
+            return new JWSObject(this.header, new Payload(msg), genSigPart(position));
+        }
+
+        /**
+         * encodes the third part (signature) of the JWS for the message at the given position
+         * @param position order index of the message
+         * @return Base64URL encoded JSON Object containing ht_path and ecdsa_sig over root
+         * @throws IndexOutOfBoundsException if there is no message at this position
+         */
+        public Base64URL genSigPart(int position) throws IndexOutOfBoundsException {
+
+            return Base64URL.encode(
+                    new JSONObject()
+                            .put("ht_path", paths[position])
+                            .put("ecdsa_sig", this.signature)
+                            .toString()
+            );
+        }
+
+        /**
+         * Getter for the number of messages
+         * @return number of messages in the source tree
+         */
+        public int size() {
+
+            return this.paths.length;
+        }
+    }
 }
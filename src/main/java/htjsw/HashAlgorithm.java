@@ -0,0 +1,190 @@
+package htjsw;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Hash function used for the leaves, nodes and salts of a hashtree.
+ * every choice has its own JWS algorithm identifier, the prefix of the {@link SignatureAlgorithm} ("HTES" for ECDSA)
+ * followed by the hash token and "U" for unpadded trees, so the verifier knows which function to fold a path with.
+ * only functions with 32 byte output are supported, as trees, paths and the binary format hold 32 byte nodes
+ * @author F. Krause
+ */
+public enum HashAlgorithm {
+
+    /**
+     * SHA-256, identifiers "HTES256" and "HTES256U"
+     */
+    SHA256("SHA-256", "256"),
+
+    /**
+     * SHA-512 truncated to 256 bits, usually faster than SHA-256 on 64 bit machines without SHA extensions,
+     * identifiers "HTES512_256" and "HTES512_256U"
+     */
+    SHA512_256("SHA-512/256", "512_256"),
+
+    /**
+     * SHA3-256, identifiers "HTES3_256" and "HTES3_256U"
+     */
+    SHA3_256("SHA3-256", "3_256");
+
+    /**
+     * suffix of the algorithm identifiers of unpadded trees
+     */
+    static final String UNPADDED = "U";
+
+    /**
+     * JCA name of the hash function
+     */
+    private final String jcaName;
+
+    /**
+     * token within the algorithm identifier
+     */
+    private final String token;
+
+    /**
+     * per-thread hash generators, used wherever hashing may happen concurrently
+     */
+    private final ThreadLocal<MessageDigest> digests;
+
+    /**
+     * Constructor
+     * @param jcaName JCA name of the hash function
+     * @param token token within the algorithm identifier
+     */
+    HashAlgorithm(String jcaName, String token) {
+
+        this.jcaName = jcaName;
+        this.token = token;
+        this.digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(jcaName);
+
+            } catch (NoSuchAlgorithmException e) {
+
+                throw new IllegalStateException(jcaName + " not supported", e);
+            }
+        });
+    }
+
+    /**
+     * Getter for the JCA name
+     * @return name to get a MessageDigest with
+     */
+    public String getJCAName() {
+
+        return this.jcaName;
+    }
+
+    /**
+     * Getter for the size of the random salt leaf placed next to each message hash
+     * @return salt size in bytes, as long as a hash
+     */
+    public int getSaltSize() {
+
+        return Merkle.NODE_SIZE;
+    }
+
+    /**
+     * Getter for the JWS algorithm identifier of ECDSA signatures
+     * @param padded tree shape, see {@link Merkle#isPadded()}
+     * @return identifier of signatures from trees of this shape hashed with this function
+     */
+    public String getAlgorithm(boolean padded) {
+
+        return getAlgorithm(SignatureAlgorithm.ECDSA, padded);
+    }
+
+    /**
+     * Getter for the JWS algorithm identifier
+     * @param signature algorithm of the root signature
+     * @param padded tree shape, see {@link Merkle#isPadded()}
+     * @return identifier of signatures from trees of this shape hashed with this function
+     */
+    public String getAlgorithm(SignatureAlgorithm signature, boolean padded) {
+
+        return signature.getPrefix() + this.token + (padded ? "" : UNPADDED);
+    }
+
+    /**
+     * Getter for this thread's hash generator
+     * @return reset digest instance, not to be shared with other threads
+     */
+    MessageDigest digest() {
+
+        return this.digests.get();
+    }
+
+    /**
+     * creates a new hash generator
+     * @param provider JCA provider to take it from, null for the default provider
+     * @return digest instance
+     * @throws NoSuchAlgorithmException if the provider does not support this function
+     */
+    MessageDigest newDigest(@Nullable Provider provider) throws NoSuchAlgorithmException {
+
+        return provider == null ? MessageDigest.getInstance(this.jcaName) : MessageDigest.getInstance(this.jcaName, provider);
+    }
+
+    /**
+     * maps a JWS algorithm identifier to its hash function
+     * @param alg algorithm identifier
+     * @return hash function
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    public static HashAlgorithm fromAlgorithm(String alg) throws IllegalArgumentException {
+
+        String prefix = SignatureAlgorithm.fromAlgorithm(alg).getPrefix();
+        String token = alg.substring(prefix.length(), alg.length() - (alg.endsWith(UNPADDED) ? UNPADDED.length() : 0));
+        for (HashAlgorithm hash : values()) if (hash.token.equals(token)) return hash;
+
+        throw new IllegalArgumentException("Unsupported algorithm");
+    }
+
+    /**
+     * maps a JWS algorithm identifier to the tree shape
+     * @param alg algorithm identifier
+     * @return true for padded, false for unpadded trees
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    static boolean isPadded(String alg) throws IllegalArgumentException {
+
+        fromAlgorithm(alg);
+        return !alg.endsWith(UNPADDED);
+    }
+
+    /**
+     * maps a name as given on the command line, either the JCA name or the constant name, case-insensitive
+     * @param name e.g. "SHA-512/256" or "sha512_256"
+     * @return hash function
+     * @throws IllegalArgumentException if there is no such function
+     */
+    public static HashAlgorithm fromName(String name) throws IllegalArgumentException {
+
+        for (HashAlgorithm hash : values())
+            if (hash.jcaName.equalsIgnoreCase(name) || hash.name().equalsIgnoreCase(name)) return hash;
+
+        throw new IllegalArgumentException("Unsupported hash algorithm " + name);
+    }
+}
@@ -0,0 +1,583 @@
+package htjsw;
+
+import com.nimbusds.jose.util.Base64;
+import com.nimbusds.jose.util.Base64URL;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Read-only view of a signed tree saved in the binary format (see {@link Merkle#writeBinary(Path)}).
+ * the file is memory-mapped instead of read, so only the nodes along a requested path are ever loaded.
+ * messages are looked up in a sorted digest index kept in a sidecar file next to the tree,
+ * which is built on first open.
+ * instances may be used from multiple threads
+ * @author F. Krause
+ */
+public class MappedMerkle implements SignedTree, Closeable {
+
+    /**
+     * leading bytes identifying the index file format
+     */
+    static final byte[] INDEX_MAGIC = {'H', 'T', 'S', 'I'};
+
+    /**
+     * current version of the index file format
+     */
+    static final int INDEX_VERSION = 1;
+
+    /**
+     * size of the index file header: magic, version, message count and tree root
+     */
+    private static final int INDEX_HEADER_SIZE = 4 + 1 + 4 + Merkle.NODE_SIZE;
+
+    /**
+     * size of an index entry: first four hash bytes and order index
+     */
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    /**
+     * size of the mapped segments, a multiple of both node and index entry size so neither straddles two segments
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * JWS algorithm identifier, also determining the tree shape
+     */
+    private final String algorithm;
+
+    /**
+     * hash function of leaves and nodes, determined by the algorithm identifier
+     */
+    private final HashAlgorithm hashAlgorithm;
+
+    /**
+     * root signature
+     */
+    private final Base64URL signature;
+
+    /**
+     * X.509 certificate as Base64-encoded Bytes
+     */
+    private final Base64 cert;
+
+    /**
+     * number of messages
+     */
+    private final int count;
+
+    /**
+     * number of nodes in each row, leaf row first
+     */
+    private final int[] widths;
+
+    /**
+     * path from the root to the signed forest root if the tree is a shard of a {@link MerkleForest}, else null
+     */
+    private final @Nullable String[] topPath;
+
+    /**
+     * chunk size of chunked leaf mode, 0 if messages are hashed as a whole
+     */
+    private final int chunkSize;
+
+    /**
+     * node index at which each row starts
+     */
+    private final long[] offsets;
+
+    /**
+     * mapped node data of the tree file
+     */
+    private volatile ByteBuffer[] nodes;
+
+    /**
+     * mapped entries of the index file
+     */
+    private volatile ByteBuffer[] entries;
+
+    /**
+     * Constructor opening a binary tree file, using (and if needed creating) the index file next to it
+     * named like the tree file with ".idx" appended
+     * @param file binary tree file
+     * @throws IOException if a file cannot be read, the index cannot be written or the tree file is invalid
+     */
+    public MappedMerkle(Path file) throws IOException {
+
+        this(file, file.resolveSibling(file.getFileName() + ".idx"));
+    }
+
+    /**
+     * Constructor opening a binary tree file with an explicit index file.
+     * the index is (re)built if it does not exist or does not belong to the tree
+     * @param file binary tree file
+     * @param indexFile index file
+     * @throws IOException if a file cannot be read, the index cannot be written or the tree file is invalid
+     */
+    public MappedMerkle(Path file, Path indexFile) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            // only the header is read through the stream, the nodes behind it are mapped
+            CountingInputStream counter = new CountingInputStream(Channels.newInputStream(channel));
+            DataInputStream data = new DataInputStream(counter);
+
+            byte[] magic = new byte[Merkle.BINARY_MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, Merkle.BINARY_MAGIC)) throw new IOException("Not a binary tree file");
+            int version = data.readUnsignedByte();
+            if (version < 1 || version > Merkle.BINARY_VERSION) throw new IOException("Unsupported binary tree format version");
+            this.algorithm = data.readUTF();
+            boolean padded;
+            try {
+                padded = Merkle.isPadded(algorithm);
+                this.hashAlgorithm = HashAlgorithm.fromAlgorithm(algorithm);
+
+            } catch (IllegalArgumentException e) {
+
+                throw new IOException(e);
+            }
+
+            this.signature = Base64URL.encode(Merkle.readField(data));
+            this.cert = Base64.encode(Merkle.readField(data));
+
+            this.count = data.readInt();
+            int width = data.readInt();
+            if (count < 0 || width < 1 || !Merkle.validShape(padded, count, width)) throw new IOException("Invalid tree size");
+            this.topPath = version >= 2 ? Merkle.readTopPath(data) : null;
+            this.chunkSize = version >= 3 ? Merkle.readChunkSize(data) : 0;
+
+            this.widths = Merkle.rowWidths(width);
+            this.offsets = new long[widths.length + 1];
+            for (int i = 0; i < widths.length; i++) offsets[i + 1] = offsets[i] + widths[i];
+
+            long length = offsets[widths.length] * Merkle.NODE_SIZE;
+            if (channel.size() - counter.count < length) throw new IOException("Truncated tree file");
+
+            this.nodes = map(channel, counter.count, length);
+        }
+
+        if (!indexMatches(indexFile)) writeIndex(indexFile);
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+
+            this.entries = map(channel, INDEX_HEADER_SIZE, (long) count * INDEX_ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * maps a region of a file in read-only segments of at most {@link #SEGMENT_SIZE} bytes
+     * @param channel open file
+     * @param position start of the region
+     * @param length length of the region
+     * @return mapped segments
+     * @throws IOException if mapping fails
+     */
+    private static ByteBuffer[] map(FileChannel channel, long position, long length) throws IOException {
+
+        ByteBuffer[] segments = new ByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, Math.min(SEGMENT_SIZE, length - start));
+        }
+        return segments;
+    }
+
+    /**
+     * Getter for the JWS algorithm identifier
+     * @return algorithm stored in the tree file
+     */
+    @Override
+    public String getAlgorithm() {
+
+        return this.algorithm;
+    }
+
+    /**
+     * Getter for signature
+     * @return root signature (ECDSA with SHA256 or Ed25519, see {@link #getAlgorithm()}) encoded as Base64 URL
+     */
+    @Override
+    public Base64URL getSignature() {
+
+        return this.signature;
+    }
+
+    /**
+     * Getter for Certificate
+     * @return X.509 certificate encoded in Base64
+     */
+    @Override
+    public Base64 getCert() {
+
+        return this.cert;
+    }
+
+    /**
+     * Getter for the hash function
+     * @return hash function given by the stored algorithm identifier
+     */
+    @Override
+    public HashAlgorithm getHashAlgorithm() {
+
+        return this.hashAlgorithm;
+    }
+
+    /**
+     * Getter for the chunk size of chunked leaf mode
+     * @return chunk size stored in the tree file, 0 if messages are hashed as a whole
+     */
+    @Override
+    public int getChunkSize() {
+
+        return this.chunkSize;
+    }
+
+    /**
+     * Getter for the number of messages
+     * @return number of messages in this tree
+     */
+    public int size() {
+
+        return this.count;
+    }
+
+    /**
+     * Getter for root node
+     * @return hash at root node
+     * @throws IllegalStateException if this instance has been closed
+     */
+    public byte[] getRoot() throws IllegalStateException {
+
+        byte[] root = new byte[Merkle.NODE_SIZE];
+        readNode(nodes(), widths.length - 1, 0, root, 0);
+        return root;
+    }
+
+    /**
+     * Returns the order index, aka what turn it is added into the tree when inserting all the messages (starting at 0)
+     * @param msg message to search for
+     * @return order index of the given message in this tree, or -1 if it is not contained
+     * @throws IllegalStateException if this instance has been closed
+     */
+    @Override
+    public int lookup(byte[] msg) throws IllegalStateException {
+
+        return lookupDigest(ChunkTree.leaf(msg, chunkSize, hashAlgorithm, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Returns the order index of an already hashed message,
+     * binary searching the index and comparing full hashes only for entries with the same first four bytes
+     * @param digest SHA256 hash of the message to search for (its chunk tree root in chunked leaf mode)
+     * @return order index of the given message in this tree, or -1 if it is not contained
+     * @throws IllegalStateException if this instance has been closed
+     */
+    @Override
+    public int lookupDigest(byte[] digest) throws IllegalStateException {
+        if (digest.length != Merkle.NODE_SIZE) return -1;
+
+        ByteBuffer[] nodes = nodes();
+        ByteBuffer[] entries = entries();
+        int prefix = ByteBuffer.wrap(digest).getInt();
+
+        // first entry whose prefix is not smaller than the searched one
+        int low = 0, high = count;
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            if (Integer.compareUnsigned(entryPrefix(entries, mid), prefix) < 0) low = mid + 1;
+            else high = mid;
+        }
+
+        // entries with equal prefix are ordered by position, so the first full match is the first occurrence
+        byte[] leaf = new byte[Merkle.NODE_SIZE];
+        for (int i = low; i < count && entryPrefix(entries, i) == prefix; i++) {
+
+            int position = entryPosition(entries, i);
+            readNode(nodes, 0, position * 2L, leaf, 0);
+            if (Arrays.equals(leaf, digest)) return position;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Getter for the Path to root along which a given message can be found's Neighbours in the Hashtree,
+     * reading only the sibling nodes from the mapped file
+     * @param msg message to search for
+     * @return Array of Base64-URL-Strings representing each hash
+     * @throws IllegalStateException if this instance has been closed
+     * @throws IllegalArgumentException if the message is not contained in this tree
+     */
+    @Override
+    public String[] getPath(byte[] msg) throws IllegalStateException, IllegalArgumentException {
+
+        int position = lookup(msg);
+        if (position < 0) throw new IllegalArgumentException("Message not contained in this tree");
+
+        return getPath(position);
+    }
+
+    /**
+     * Getter for the Path of the message at a given order index
+     * @param position order index of the message
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IllegalStateException if this instance has been closed
+     * @throws IndexOutOfBoundsException if there is no message at this position
+     */
+    @Override
+    public String[] getPath(int position) throws IllegalStateException, IndexOutOfBoundsException {
+        if (position < 0 || position >= count) throw new IndexOutOfBoundsException(position);
+
+        ByteBuffer[] nodes = nodes();
+        String[] path = new String[widths.length - 1];
+        int length = 0;
+
+        long offset = position * 2L;
+        byte[] node = new byte[Merkle.NODE_SIZE + 1];
+        for (int level = 0; level < path.length; level++) {
+
+            // lone nodes of unpadded trees have no sibling and are promoted without a path entry
+            long sibling = offset ^ 1;
+            if (sibling >= widths[level]) {
+
+                offset /= 2;
+                continue;
+            }
+
+            if (sibling % 2 == 0) {
+
+                node[0] = (byte) '-';
+                readNode(nodes, level, sibling, node, 1);
+                path[length++] = Base64URL.encode(node).toString();
+
+            } else {
+
+                readNode(nodes, level, sibling, node, 0);
+                path[length++] = Base64URL.encode(Arrays.copyOf(node, Merkle.NODE_SIZE)).toString();
+            }
+            offset /= 2;
+        }
+
+        if (topPath == null) return Arrays.copyOf(path, length);
+
+        String[] full = Arrays.copyOf(path, length + topPath.length);
+        System.arraycopy(topPath, 0, full, length, topPath.length);
+        return full;
+    }
+
+    /**
+     * releases the file mappings. the memory is returned to the OS once the buffers are garbage collected
+     */
+    @Override
+    public void close() {
+
+        this.nodes = null;
+        this.entries = null;
+    }
+
+    /**
+     * Getter for the node mapping
+     * @return mapped segments
+     * @throws IllegalStateException if this instance has been closed
+     */
+    private ByteBuffer[] nodes() throws IllegalStateException {
+
+        ByteBuffer[] nodes = this.nodes;
+        if (nodes == null) throw new IllegalStateException("Tree file has been closed");
+        return nodes;
+    }
+
+    /**
+     * Getter for the index mapping
+     * @return mapped segments
+     * @throws IllegalStateException if this instance has been closed
+     */
+    private ByteBuffer[] entries() throws IllegalStateException {
+
+        ByteBuffer[] entries = this.entries;
+        if (entries == null) throw new IllegalStateException("Tree file has been closed");
+        return entries;
+    }
+
+    /**
+     * copies a node out of the mapped tree, using absolute reads only so that concurrent readers do not interfere
+     * @param nodes mapped segments
+     * @param level row, 0 being the leaf row
+     * @param index position in row
+     * @param out buffer to copy to
+     * @param outOff offset in out
+     */
+    private void readNode(ByteBuffer[] nodes, int level, long index, byte[] out, int outOff) {
+
+        long off = (offsets[level] + index) * Merkle.NODE_SIZE;
+        nodes[(int) (off / SEGMENT_SIZE)].get((int) (off % SEGMENT_SIZE), out, outOff, Merkle.NODE_SIZE);
+    }
+
+    /**
+     * reads the hash prefix of an index entry
+     * @param entries mapped segments
+     * @param i entry number
+     * @return first four hash bytes
+     */
+    private static int entryPrefix(ByteBuffer[] entries, int i) {
+
+        long off = (long) i * INDEX_ENTRY_SIZE;
+        return entries[(int) (off / SEGMENT_SIZE)].getInt((int) (off % SEGMENT_SIZE));
+    }
+
+    /**
+     * reads the order index of an index entry
+     * @param entries mapped segments
+     * @param i entry number
+     * @return order index of the message
+     */
+    private static int entryPosition(ByteBuffer[] entries, int i) {
+
+        long off = (long) i * INDEX_ENTRY_SIZE + 4;
+        return entries[(int) (off / SEGMENT_SIZE)].getInt((int) (off % SEGMENT_SIZE));
+    }
+
+    /*
+     * index file format (big endian):
+     *
+     * 4 bytes   magic "HTSI"
+     * 1 byte    format version
+     * int       number of messages
+     * 32 bytes  root of the tree the index belongs to
+     * n * 8     entries of (first four hash bytes, order index), sorted by unsigned prefix, then order index
+     */
+    /**
+     * checks whether an index file exists and belongs to this tree
+     * @param indexFile index file
+     * @return true if the index can be used
+     * @throws IOException if the file exists but cannot be read
+     */
+    private boolean indexMatches(Path indexFile) throws IOException {
+        if (!Files.isRegularFile(indexFile)) return false;
+        if (Files.size(indexFile) != INDEX_HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE) return false;
+
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC) || data.readUnsignedByte() != INDEX_VERSION) return false;
+            if (data.readInt() != count) return false;
+
+            byte[] root = new byte[Merkle.NODE_SIZE];
+            data.readFully(root);
+            return Arrays.equals(root, getRoot());
+        }
+    }
+
+    /**
+     * builds the sorted index from the message hashes in the leaf row and writes it
+     * @param indexFile index file to create or overwrite
+     * @throws IOException if writing fails
+     */
+    private void writeIndex(Path indexFile) throws IOException {
+
+        ByteBuffer[] nodes = nodes();
+        byte[] leaf = new byte[Merkle.NODE_SIZE];
+
+        // prefix (sign flipped, so signed order equals unsigned order) in the high half, position in the low half
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+
+            readNode(nodes, 0, i * 2L, leaf, 0);
+            int prefix = ByteBuffer.wrap(leaf).getInt();
+            keys[i] = ((long) (prefix ^ Integer.MIN_VALUE) << 32) | i;
+        }
+        Arrays.parallelSort(keys);
+
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), Merkle.BUFFER_SIZE))) {
+
+            data.write(INDEX_MAGIC);
+            data.writeByte(INDEX_VERSION);
+            data.writeInt(count);
+            data.write(getRoot());
+
+            for (long key : keys) {
+
+                data.writeInt((int) (key >>> 32) ^ Integer.MIN_VALUE);
+                data.writeInt((int) key);
+            }
+        }
+    }
+
+    /**
+     * stream wrapper counting the bytes read, used to find where the nodes start behind the variable length header
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        /**
+         * number of bytes read so far
+         */
+        private long count = 0;
+
+        /**
+         * Constructor
+         * @param in stream to wrap
+         */
+        CountingInputStream(InputStream in) {
+
+            super(in);
+        }
+
+        /**
+         * reads a single byte
+         * @return byte read, or -1 at the end of the stream
+         * @throws IOException if reading fails
+         */
+        @Override
+        public int read() throws IOException {
+
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        /**
+         * reads bytes into a buffer
+         * @param b buffer
+         * @param off offset in buffer
+         * @param len maximum number of bytes
+         * @return number of bytes read, or -1 at the end of the stream
+         * @throws IOException if reading fails
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -9,22 +9,29 @@ import com.nimbusds.jose.util.Base64;
 import com.nimbusds.jose.util.Base64URL;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.security.*;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.security.interfaces.ECPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 /*
  *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
@@ -47,12 +54,57 @@ import java.util.Collection;
  * Class that contains both the Hashtree structure and Signature data
  * @author F. Krause
  */
-public class Merkle {
+public class Merkle implements SignedTree {
 
     /**
-     * constant for ln(2)
+     * size of the buffer used for hashing streamed messages in chunks
      */
-    static final double ln2 = Math.log(2);
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * size of a tree node (a 256 bit hash) in bytes
+     */
+    static final int NODE_SIZE = 32;
+
+    /**
+     * JWS algorithm identifier of the signatures produced from padded SHA-256 trees
+     */
+    static final String ALGORITHM = "HTES256";
+
+    /**
+     * JWS algorithm identifier of the signatures produced from unpadded SHA-256 trees
+     */
+    static final String ALGORITHM_UNPADDED = "HTES256U";
+
+    /**
+     * leading bytes identifying the binary tree format
+     */
+    static final byte[] BINARY_MAGIC = {'H', 'T', 'S', 'B'};
+
+    /**
+     * current version of the binary tree format, older files (without top path or chunk size) are still read
+     */
+    static final int BINARY_VERSION = 3;
+
+    /**
+     * upper bound for the signature and certificate sizes accepted when reading the binary tree format
+     */
+    private static final int MAX_BINARY_FIELD = 1 << 20;
+
+    /**
+     * smallest chunk size of chunked leaf mode
+     */
+    public static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    /**
+     * largest chunk size of chunked leaf mode
+     */
+    public static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * default number of leaves from which on the tree is built in parallel
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 12;
 
     /**
      * List of the Tree's leaf nodes (byte-Strings)
@@ -62,12 +114,17 @@ public class Merkle {
     /**
      * List of the signed hashes used for looking up position
      */
-    private final ArrayList<String> dict;
+    private final DigestIndex index;
+
+    /**
+     * hash function of leaves, nodes and salts
+     */
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.SHA256;
 
     /**
-     * SHA256 hash generator
+     * hash generator of the hash function
      */
-    private final MessageDigest hash;
+    private MessageDigest hash;
 
     /**
      * random number generator
@@ -75,15 +132,194 @@ public class Merkle {
     private static final SecureRandom srand = new SecureRandom();
 
     /**
-     * ECDSA signature generator
+     * shared JSON mapper with the custom (de)serializers registered.
+     * streams handed to it are left open, closing them is up to the caller
+     */
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new SimpleModule("MerkleModule", new Version(1, 0, 0, null, null, null))
+                    .addSerializer(Merkle.class, new CustomMerkSerializer())
+                    .addDeserializer(Merkle.class, new CustomMerkDeserializer())
+                    .addSerializer(HashTree.class, new HashTree.CustomTreeSerializer())
+                    .addDeserializer(HashTree.class, new HashTree.CustomTreeDeserializer()))
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * root signature generator
+     */
+    private Signature signer;
+
+    /**
+     * algorithm of the root signature, determined by the key
      */
-    private final Signature ecdsa;
+    private SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.ECDSA;
 
     /**
      * Tree instance
      */
     private HashTree tree;
 
+    /**
+     * number of leaves from which on the tree is built in parallel,
+     * also the leaf count of the subtrees that are hashed as one task
+     */
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Getter for the parallel tree build threshold
+     * @return number of leaves from which on the tree is built in parallel
+     */
+    public int getParallelThreshold() {
+
+        return this.parallelThreshold;
+    }
+
+    /**
+     * Setter for the parallel tree build threshold.
+     * trees with at most this many leaves (including salts and padding) are built sequentially,
+     * larger ones are split into subtrees of this size that are hashed concurrently
+     * @param threshold leaf count, use {@link Integer#MAX_VALUE} to always build sequentially
+     * @throws IllegalArgumentException if threshold is smaller than 1
+     */
+    public void setParallelThreshold(int threshold) throws IllegalArgumentException {
+        if (threshold < 1) throw new IllegalArgumentException("Threshold must be positive");
+
+        this.parallelThreshold = threshold;
+    }
+
+    /**
+     * Getter for the hash function
+     * @return hash function of leaves, nodes and salts
+     */
+    @Override
+    public HashAlgorithm getHashAlgorithm() {
+
+        return this.hashAlgorithm;
+    }
+
+    /**
+     * Setter for the hash function, which also determines the algorithm identifier of the signatures
+     * (see {@link HashAlgorithm#getAlgorithm(boolean)}).
+     * SHA-256 is used unless another function is set before adding messages
+     * @param hashAlgorithm hash function of leaves, nodes and salts
+     * @throws IllegalStateException if messages have been added already
+     * @throws NoSuchAlgorithmException if the hash function is not supported by the JRE
+     */
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) throws IllegalStateException, NoSuchAlgorithmException {
+        if (this.closed || this.index.size() > 0) throw new IllegalStateException("Hash algorithm must be set before adding messages");
+
+        useHashAlgorithm(hashAlgorithm);
+    }
+
+    /**
+     * switches all hashing over to the given function, used when loading a tree
+     * @param hashAlgorithm hash function of leaves, nodes and salts
+     * @throws NoSuchAlgorithmException if the hash function is not supported by the JRE
+     */
+    private void useHashAlgorithm(HashAlgorithm hashAlgorithm) throws NoSuchAlgorithmException {
+
+        this.hash = MessageDigest.getInstance(hashAlgorithm.getJCAName());
+        this.hashAlgorithm = hashAlgorithm;
+        if (this.tree != null) this.tree.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * chunk size of chunked leaf mode, 0 if messages are hashed as a whole
+     */
+    private int chunkSize;
+
+    /**
+     * Getter for the chunk size of chunked leaf mode
+     * @return chunk size in bytes, 0 if messages are hashed as a whole
+     */
+    @Override
+    public int getChunkSize() {
+
+        return this.chunkSize;
+    }
+
+    /**
+     * Setter for chunked leaf mode.
+     * messages longer than the chunk size are split into chunks that are hashed in parallel,
+     * their leaf is the root of a subtree over the chunk hashes instead of the plain hash.
+     * JWSs of such trees carry the chunk size in their "ht_chunk" header, and single chunks of a message can be
+     * proven on their own with {@link HTJWSBuilder#genChunkJWS(SignedTree, Path, int)}
+     * @param chunkSize chunk size in bytes, between {@value #MIN_CHUNK_SIZE} and {@value #MAX_CHUNK_SIZE}, or 0 to hash messages as a whole
+     * @throws IllegalStateException if messages have been added already
+     * @throws IllegalArgumentException if the chunk size is out of bounds
+     */
+    public void setChunkSize(int chunkSize) throws IllegalStateException, IllegalArgumentException {
+        if (this.closed || this.index.size() > 0) throw new IllegalStateException("Chunk size must be set before adding messages");
+        if (chunkSize != 0 && !ChunkTree.validChunkSize(chunkSize)) throw new IllegalArgumentException("Invalid chunk size");
+
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * whether the leaf row is padded up to the next power of two,
+     * otherwise lone nodes at the end of a row are promoted to the next row unchanged
+     */
+    private boolean padded = true;
+
+    /**
+     * Getter for the tree shape
+     * @return true if the leaf row is padded up to the next power of two
+     */
+    public boolean isPadded() {
+
+        return this.padded;
+    }
+
+    /**
+     * Setter for the tree shape.
+     * unpadded trees only hash and store the nodes that are actually needed,
+     * their signatures use the {@value #ALGORITHM_UNPADDED} algorithm instead of {@value #ALGORITHM}
+     * @param padded true to pad the leaf row up to the next power of two with random nodes,
+     *               false to promote lone nodes instead
+     * @throws IllegalStateException if this structure is already closed
+     */
+    public void setPadded(boolean padded) throws IllegalStateException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+
+        this.padded = padded;
+    }
+
+    /**
+     * Getter for the JWS algorithm identifier
+     * @return "HTES" for ECDSA or "HTED" for Ed25519 root signatures, followed by the hash token and "U" for unpadded trees,
+     *         e.g. {@value Merkle#ALGORITHM} for padded ECDSA signed SHA-256 trees
+     * @see HashAlgorithm#getAlgorithm(SignatureAlgorithm, boolean)
+     * @see SignatureAlgorithm
+     */
+    @Override
+    public String getAlgorithm() {
+
+        return this.hashAlgorithm.getAlgorithm(this.signatureAlgorithm, this.padded);
+    }
+
+    /**
+     * maps a JWS algorithm identifier to the tree shape
+     * @param alg algorithm identifier
+     * @return true for padded, false for unpadded trees
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    static boolean isPadded(String alg) throws IllegalArgumentException {
+
+        return HashAlgorithm.isPadded(alg);
+    }
+
+    /**
+     * checks that a leaf row width fits the tree shape
+     * @param padded tree shape
+     * @param count number of messages
+     * @param width number of nodes in the leaf row
+     * @return true if padded rows are a power of two and unpadded ones hold exactly the messages and salts
+     */
+    static boolean validShape(boolean padded, int count, int width) {
+
+        return padded ? Integer.bitCount(width) == 1 && count <= width / 2 : width == count * 2;
+    }
+
     /**
      * root signature instance
      */
@@ -91,13 +327,29 @@ public class Merkle {
 
     /**
      * Getter for signature
-     * @return ecdsa signature over root hash (SHA256) encoded as Base64 URL
+     * @return signature over root hash (ECDSA with SHA256 or Ed25519) encoded as Base64 URL
      */
+    @Override
     public @Nullable Base64URL getSignature() {
 
         return this.signature;
     }
 
+    /**
+     * Getter for the signature algorithm
+     * @return algorithm of the root signature, given by the initiated key or the loaded tree file
+     */
+    public SignatureAlgorithm getSignatureAlgorithm() {
+
+        return this.signatureAlgorithm;
+    }
+
+    /**
+     * path from this tree's root to the signed root of the {@link MerkleForest} it is a shard of,
+     * appended to every path. null for stand-alone trees
+     */
+    private @Nullable String[] topPath;
+
     /**
      * X.509 certificate as Base64-encoded Bytes
      */
@@ -107,6 +359,7 @@ public class Merkle {
      * Getter for Certificate
      * @return X.509 certificate encoded in Base64
      */
+    @Override
     public @Nullable Base64 getCert() {
 
         return this.cert;
@@ -136,10 +389,10 @@ public class Merkle {
     public Merkle() throws NoSuchAlgorithmException {
 
         this.leaves = new ArrayList<>();
-        this.dict = new ArrayList<>();
+        this.index = new DigestIndex();
 
-        this.hash = MessageDigest.getInstance("SHA-256");
-        this.ecdsa = Signature.getInstance("SHA256withECDSA");
+        this.hash = MessageDigest.getInstance(this.hashAlgorithm.getJCAName());
+        this.signer = Signature.getInstance(this.signatureAlgorithm.getJCAName());
 
         this.closed = false;
         this.initiated = false;
@@ -163,11 +416,11 @@ public class Merkle {
 
     /**
      * Constructor with immediate initialisation using pre-parsed Certificate and Key Objects
-     * @param key key object
+     * @param key EC or Ed25519 key object
      * @param cert certificate object
      * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
      */
-    public Merkle(ECPrivateKey key, X509Certificate cert) throws NoSuchAlgorithmException {
+    public Merkle(PrivateKey key, X509Certificate cert) throws NoSuchAlgorithmException {
 
         this();
         this.init(key, cert);
@@ -184,11 +437,12 @@ public class Merkle {
 
         try {
 
-            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(Files.readAllBytes(keyFile.toPath()));
-            ECPrivateKey eckey =(ECPrivateKey) KeyFactory.getInstance("EC").generatePrivate(spec);
-
             X509Certificate eccert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new FileInputStream(certFile));
 
+            // the key is parsed as whatever type the certificate holds, EC or EdDSA
+            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(Files.readAllBytes(keyFile.toPath()));
+            PrivateKey eckey = KeyFactory.getInstance(eccert.getPublicKey().getAlgorithm()).generatePrivate(spec);
+
             init(eckey, eccert);
 
         } catch (IOException e) {
@@ -218,14 +472,25 @@ public class Merkle {
     }
 
     /**
-     * initialisation of Key and Certificate for signing from pre-parsed objects
-     * @param key key object
+     * initialisation of Key and Certificate for signing from pre-parsed objects.
+     * the key type determines the signature algorithm, ECDSA for EC keys and Ed25519 for Ed25519 keys
+     * @param key EC or Ed25519 key object
      * @param eccert certificate object
+     * @throws IllegalStateException if the structure holds a signature of another algorithm
+     * @throws NoSuchAlgorithmException if the JRE does not support the signature algorithm
      */
-    public void init(ECPrivateKey key, X509Certificate eccert) {
+    public void init(PrivateKey key, X509Certificate eccert) throws IllegalStateException, NoSuchAlgorithmException {
         try {
 
-            ecdsa.initSign(key, srand);
+            SignatureAlgorithm algorithm = SignatureAlgorithm.fromKey(key);
+            if (algorithm != this.signatureAlgorithm && this.signature != null)
+                throw new IllegalStateException("This Structure is signed with " + this.signatureAlgorithm + " already");
+
+            // loaded trees know their algorithm from the file, but still hold the default signer
+            if (!this.signer.getAlgorithm().equals(algorithm.getJCAName())) this.signer = algorithm.newSignature(null);
+            this.signatureAlgorithm = algorithm;
+
+            signer.initSign(key, srand);
             this.cert = Base64.encode(eccert.getEncoded());
 
             this.initiated = true;
@@ -250,7 +515,7 @@ public class Merkle {
 
     /**
      * generate string of hex values that represents the byte array
-     * (for use in leaves)
+     * (for use in the serialized dict, bytes below 0x10 are written as a single digit)
      * @param bytes input
      * @return output
      */
@@ -268,8 +533,43 @@ public class Merkle {
      * @param msg message to search for
      * @return order index of the given message in this tree, or -1 if it is not contained
      */
+    @Override
     public int lookup(byte[] msg) {
-        return this.dict.indexOf(bytesToHex(hash.digest(msg)));
+        return this.index.indexOf(ChunkTree.leaf(msg, this.chunkSize, this.hashAlgorithm, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Returns the order index of a message that is read from a file in chunks
+     * @param file file containing the message to search for
+     * @return order index of the given message in this tree, or -1 if it is not contained
+     * @throws IOException if the file cannot be read
+     * @see #lookup(byte[])
+     */
+    public int lookup(Path file) throws IOException {
+
+        return this.index.indexOf(ChunkTree.leaf(file, this.chunkSize, this.hashAlgorithm, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Returns the order index of an already hashed message
+     * @param digest hash of the message to search for (its chunk tree root in chunked leaf mode)
+     * @return order index of the given message in this tree, or -1 if it is not contained
+     * @see #lookup(byte[])
+     */
+    @Override
+    public int lookupDigest(byte[] digest) {
+        if (digest.length != NODE_SIZE) return -1;
+
+        return this.index.indexOf(digest);
+    }
+
+    /**
+     * Getter for the number of contained messages
+     * @return message count
+     */
+    public int size() {
+
+        return this.index.size();
     }
 
     /**
@@ -280,14 +580,104 @@ public class Merkle {
     public void add(byte[] msg) throws IllegalStateException {
         if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
 
-        byte[] ham = hash.digest(msg);
+        addLeaf(ChunkTree.leaf(msg, this.chunkSize, this.hashAlgorithm, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * add node to leaves, reading the message from a stream in chunks of {@link #BUFFER_SIZE} bytes
+     * (the stream is read to its end but not closed).
+     * in chunked leaf mode, the chunks of long messages are hashed one after the other on the calling thread
+     * @param in stream containing the raw message
+     * @throws IllegalStateException if this structure is already closed
+     * @throws IOException if the stream cannot be read
+     */
+    public void add(InputStream in) throws IllegalStateException, IOException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+
+        addLeaf(ChunkTree.leaf(in, this.chunkSize, hash, this.hashAlgorithm));
+    }
+
+    /**
+     * add node to leaves, reading the message from a file in chunks of {@link #BUFFER_SIZE} bytes.
+     * in chunked leaf mode, the chunks of long messages are read and hashed in parallel on the common ForkJoinPool
+     * @param file file containing the raw message
+     * @throws IllegalStateException if this structure is already closed
+     * @throws IOException if the file cannot be read
+     */
+    public void add(Path file) throws IllegalStateException, IOException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+
+        addLeaf(ChunkTree.leaf(file, this.chunkSize, this.hashAlgorithm, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * add node to leaves for a message that has already been hashed, e.g. concurrently by the caller.
+     * messages are ordered as their digests are added
+     * @param digest hash of the raw message (see {@link #getHashAlgorithm()}), in chunked leaf mode the chunk tree root for messages longer than a chunk
+     * @throws IllegalStateException if this structure is already closed
+     * @throws IllegalArgumentException if the digest is not 32 bytes long
+     */
+    public void addDigest(byte[] digest) throws IllegalStateException, IllegalArgumentException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+        if (digest.length != NODE_SIZE) throw new IllegalArgumentException("Not a 32 byte hash");
+
+        addLeaf(digest.clone());
+    }
+
+    /**
+     * hash the remaining content of a stream using a fixed size buffer
+     * @param md digest to use, is reset afterwards even if reading fails
+     * @param in stream to read
+     * @return hash over the stream's content
+     * @throws IOException if the stream cannot be read
+     */
+    static byte[] digest(MessageDigest md, InputStream in) throws IOException {
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        try {
+            int len;
+            while ((len = in.read(buf)) != -1) md.update(buf, 0, len);
+
+            return md.digest();
+
+        } finally {
+
+            md.reset();
+        }
+    }
+
+    /**
+     * append a hashed message and a fresh random salt leaf to the leaves
+     * @param ham hash of the message
+     */
+    private void addLeaf(byte[] ham) {
+
+        addLeaf(ham, salt(this.hashAlgorithm.getSaltSize()));
+    }
+
+    /**
+     * append a hashed message and its salt leaf to the leaves
+     * @param ham hash of the message
+     * @param salt random salt leaf placed right of the message hash
+     */
+    private void addLeaf(byte[] ham, byte[] salt) {
 
         leaves.add(ham);
+        leaves.add(salt);
+
+        index.add(ham);
+    }
 
-        leaves.add(new byte[32]);
-        srand.nextBytes(leaves.get(leaves.size() - 1));
+    /**
+     * generate a random salt leaf
+     * @param size salt size in bytes
+     * @return random bytes
+     */
+    private static byte[] salt(int size) {
 
-        dict.add(bytesToHex(ham));
+        byte[] salt = new byte[size];
+        srand.nextBytes(salt);
+        return salt;
     }
 
     /**
@@ -300,6 +690,42 @@ public class Merkle {
         for (byte[] b : list) this.add(b);
     }
 
+    /**
+     * bulk add nodes to leaves, hashing on all cores of the common ForkJoinPool.
+     * leaf order and lookup positions are the same as with {@link #addAll(Collection)}
+     * @param list list of raw byte-array messages to sign
+     * @throws IllegalStateException if this structure is already closed
+     */
+    public void addAllParallel(Collection<byte[]> list) throws IllegalStateException {
+
+        addAllParallel(list, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * bulk add nodes to leaves, hashing on the given pool using per-thread digests.
+     * leaf order and lookup positions are the same as with {@link #addAll(Collection)}
+     * @param list list of raw byte-array messages to sign
+     * @param pool pool to run the hashing on
+     * @throws IllegalStateException if this structure is already closed
+     */
+    public void addAllParallel(Collection<byte[]> list, ForkJoinPool pool) throws IllegalStateException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+
+        byte[][] msgs = list.toArray(new byte[0][]);
+        byte[][] hams = new byte[msgs.length][];
+        byte[][] salts = new byte[msgs.length][];
+
+        // results are written by index, so the worker scheduling does not affect the order
+        pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, msgs.length).parallel().forEach(i -> {
+            hams[i] = ChunkTree.leaf(msgs[i], this.chunkSize, this.hashAlgorithm, pool);
+            salts[i] = salt(this.hashAlgorithm.getSaltSize());
+        })));
+
+        leaves.ensureCapacity(leaves.size() + msgs.length * 2);
+        index.ensureCapacity((long) index.size() + msgs.length);
+        for (int i = 0; i < msgs.length; i++) addLeaf(hams[i], salts[i]);
+    }
+
     /**
      * close and sign, generating tree and signature attribute
      * @throws IllegalStateException if this structure is already closed or has not been initialised for signing
@@ -310,19 +736,11 @@ public class Merkle {
         if (!this.initiated) throw new IllegalStateException("No Key has been initiated");
 
         try {
-            this.tree = new HashTree(this.leaves);
-            ecdsa.update(tree.getRoot());
-            this.signature = Base64URL.encode(ecdsa.sign());
+            this.tree = new HashTree(this.leaves, this.parallelThreshold, this.padded, this.hashAlgorithm, ForkJoinPool.commonPool());
+            signer.update(tree.getRoot());
+            this.signature = Base64URL.encode(signer.sign());
             this.closed = true;
 
-        } catch (ConcatException e) {
-
-            System.err.println("Failed to build Tree");
-            e.printStackTrace();
-
-            this.tree = null;
-            this.closed = false;
-
         } catch (SignatureException e) {
 
             this.signature = null;
@@ -335,169 +753,737 @@ public class Merkle {
     }
 
     /**
-     * concatenate byte arrays (order left to right) into one
-     * @param left left bytes
-     * @param right right bytes
-     * @return resulting byte array
-     * @throws ConcatException if there is a glitch during concatenation
+     * close without signing, used for the shards of a {@link MerkleForest}.
+     * the leaf list is dropped once the tree is built, as the tree holds the leaves from here on
+     * @param pool pool to hash subtrees on, so the forest's pool bounds the parallelism of the build
+     * @throws IllegalStateException if this structure is already closed
+     * @throws IllegalArgumentException if there are no leaves or too many for a single tree
      */
-    static byte[] concat(byte[] left, byte[] right) throws ConcatException {
-        try {
+    void build(ForkJoinPool pool) throws IllegalStateException, IllegalArgumentException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed already");
 
-            ByteArrayOutputStream outp = new ByteArrayOutputStream();
-            outp.write(left);
-            outp.write(right);
-            return outp.toByteArray();
+        this.tree = new HashTree(this.leaves, this.parallelThreshold, this.padded, this.hashAlgorithm, pool);
+        this.leaves.clear();
+        this.leaves.trimToSize();
+        this.closed = true;
+    }
 
-        } catch (IOException e) {
+    /**
+     * Getter for root node
+     * @return hash at root node
+     * @throws IllegalStateException if the tree has yet to be built
+     */
+    byte[] getRoot() throws IllegalStateException {
+        if (!this.closed) throw new IllegalStateException("Tree has yet to be built");
 
-            throw new ConcatException(e);
-        }
+        return this.tree.getRoot();
     }
 
     /**
-     * concatenate two byte arrays (left to right order) and SHA-256-hash the result
-     * @param left left bytes
-     * @param right right bytes
-     * @return byte array of size 32, containing the hash over the concatenated input bytes
-     * @throws ConcatException if there is a glitch during concatenation
-     * @throws NoSuchAlgorithmException if I misspelled SHA-256
+     * Getter for the hashes of the contained messages in order, used by {@link MerkleForest} to route lookups to its shards
+     * @return lookup index of this tree, not to be modified
+     */
+    DigestIndex getIndex() {
+
+        return this.index;
+    }
+
+    /**
+     * attaches a built shard to the signed root of its {@link MerkleForest}
+     * @param topPath path from this tree's root to the forest root
+     * @param signature signature over the forest root
+     * @param signatureAlgorithm algorithm of the forest signature
+     * @param cert certificate of the forest key
+     * @throws IllegalStateException if the tree has yet to be built
      */
-    public static byte[] concatHash(byte[] left, byte[] right) throws ConcatException, NoSuchAlgorithmException {
+    void attach(String[] topPath, Base64URL signature, SignatureAlgorithm signatureAlgorithm, Base64 cert) throws IllegalStateException {
+        if (!this.closed) throw new IllegalStateException("Tree has yet to be built");
+
+        this.topPath = topPath;
+        this.signature = signature;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.cert = cert;
+        this.initiated = true;
+    }
 
-        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+    /**
+     * add a message to an unpadded structure, also after it has been closed and signed.
+     * a closed tree only rehashes the O(log n) nodes along the new leaves' path
+     * and drops its signature until {@link #resign()} is called.
+     * JWSs extracted before stay valid, as they carry the signature over the root they were built from
+     * @param msg raw bytes
+     * @throws IllegalStateException if this structure is padded
+     * @throws IllegalArgumentException if the tree would grow too large
+     */
+    public void append(byte[] msg) throws IllegalStateException, IllegalArgumentException {
 
-        return sha.digest(concat(left, right));
+        appendLeaf(ChunkTree.leaf(msg, this.chunkSize, this.hashAlgorithm, ForkJoinPool.commonPool()));
     }
 
     /**
-     * custom Exception class for concatenation processes
-     * thrown if the concatenation process glitches
+     * add a message read from a file in chunks to an unpadded structure, also after it has been closed and signed
+     * @param file file containing the raw message
+     * @throws IllegalStateException if this structure is padded
+     * @throws IllegalArgumentException if the tree would grow too large
+     * @throws IOException if the file cannot be read
+     * @see #append(byte[])
      */
-    public static class ConcatException extends Exception {
+    public void append(Path file) throws IllegalStateException, IllegalArgumentException, IOException {
 
-        /**
-         * basic constructor
-         * @param errorMsg Message
-         * @param err Cause
-         */
-        public ConcatException(String errorMsg, Throwable err) {
+        appendLeaf(ChunkTree.leaf(file, this.chunkSize, this.hashAlgorithm, ForkJoinPool.commonPool()));
+    }
 
-            super(errorMsg, err);
-        }
+    /**
+     * appends a hashed message and a fresh salt leaf, directly to the tree if it has been built already
+     * @param ham hash of the message
+     * @throws IllegalStateException if this structure is padded
+     * @throws IllegalArgumentException if the tree would grow too large
+     */
+    private void appendLeaf(byte[] ham) throws IllegalStateException, IllegalArgumentException {
+        if (this.padded) throw new IllegalStateException("Only unpadded trees can be appended to");
+        if (this.topPath != null) throw new IllegalStateException("Shards of a forest cannot be appended to");
 
-        /**
-         * additional constructor to construct from a base Exception
-         * @param e Exception to cloak
-         */
-        public ConcatException(Exception e) {
+        if (!this.closed) {
 
-            this(e.getMessage(), e.getCause());
+            addLeaf(ham);
+            return;
         }
+
+        // the leaf list is only used for building, the tree holds the leaves from here on
+        this.tree.append(ham, salt(this.hashAlgorithm.getSaltSize()));
+        this.index.add(ham);
+        this.signature = null;
     }
 
-    /*
-     * rows[a][b][c]
-     * a
-     * 3                                   hash()
-     *                                  /        \
-     *                                /           \
+    /**
+     * sign the current root again after messages have been appended to a closed structure
+     * @throws IllegalStateException if this structure has not been closed or no key is available for signing
+     */
+    public void resign() throws IllegalStateException {
+        if (!this.closed) throw new IllegalStateException("Tree has yet to be built");
+        if (this.topPath != null) throw new IllegalStateException("Shards of a forest are signed by the forest");
+
+        try {
+            signer.update(tree.getRoot());
+            this.signature = Base64URL.encode(signer.sign());
+
+        } catch (SignatureException e) {
+
+            throw new IllegalStateException("No Key has been initiated", e);
+        }
+    }
+
+    /**
+     * concatenate two byte arrays (left to right order) and SHA-256-hash the result
+     * @param left left bytes
+     * @param right right bytes
+     * @return byte array of size 32, containing the hash over the concatenated input bytes
+     */
+    public static byte[] concatHash(byte[] left, byte[] right) {
+
+        MessageDigest sha = HashAlgorithm.SHA256.digest();
+        sha.update(left);
+        sha.update(right);
+
+        return sha.digest();
+    }
+
+    /**
+     * hash two concatenated 32 byte nodes (left to right order) into a caller-provided buffer,
+     * using the given digest instance. the output may overlap either input
+     * @param sha digest of the tree's hash function, is reset afterwards
+     * @param left buffer containing the left node
+     * @param leftOff offset of the left node
+     * @param right buffer containing the right node
+     * @param rightOff offset of the right node
+     * @param out buffer to write the resulting node to
+     * @param outOff offset to write the resulting node at
+     * @throws IllegalArgumentException if there are less than 32 bytes available at outOff
+     */
+    static void nodeHash(MessageDigest sha, byte[] left, int leftOff, byte[] right, int rightOff, byte[] out, int outOff) throws IllegalArgumentException {
+
+        sha.update(left, leftOff, NODE_SIZE);
+        sha.update(right, rightOff, NODE_SIZE);
+
+        try {
+            sha.digest(out, outOff, NODE_SIZE);
+
+        } catch (DigestException e) {
+
+            sha.reset();
+            throw new IllegalArgumentException("Output buffer too small", e);
+        }
+    }
+
+    /**
+     * custom Exception class for concatenation processes
+     * thrown if the concatenation process glitches
+     * @deprecated concatenation is done in place by the digest and can no longer fail,
+     * this exception is not thrown anymore
+     */
+    @Deprecated
+    public static class ConcatException extends Exception {
+
+        /**
+         * basic constructor
+         * @param errorMsg Message
+         * @param err Cause
+         */
+        public ConcatException(String errorMsg, Throwable err) {
+
+            super(errorMsg, err);
+        }
+
+        /**
+         * additional constructor to construct from a base Exception
+         * @param e Exception to cloak
+         */
+        public ConcatException(Exception e) {
+
+            this(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * computes the row widths of a tree with the given leaf row width
+     * @param width number of nodes in the leaf row, at least 1
+     * @return number of nodes in each row, leaf row first, each upper row holding (w + 1) / 2 nodes
+     */
+    static int[] rowWidths(int width) {
+
+        int[] widths = new int[33 - Integer.numberOfLeadingZeros(width - 1)];
+        widths[0] = width;
+        for (int i = 1; i < widths.length; i++) widths[i] = (widths[i - 1] + 1) / 2;
+        return widths;
+    }
+
+    /*
+     * nodes[(offsets[a] + b) * NODE_SIZE + c]
+     * a
+     * 3                                   hash()                                   offsets[3] = 14
+     *                                  /        \
+     *                                /           \
      *                              /              \
      *                            /                 \
      *                          /                    \
      *                        /                       \
-     * 2               hash()                          hash()
+     * 2               hash()                          hash()                       offsets[2] = 12
      *              /         \                     /         \
      *            /            \                  /            \
      *          /               \               /               \
-     * 1      hash()           hash()          hash()         hash()
+     * 1      hash()           hash()          hash()         hash()                offsets[1] = 8
      *      /       \        /       \       /       \      /       \
      *   c 0 1..    0 1..    ..
-     * 0 b'F1A..' b'02f..' b'..'  b'..'   b'..'   b'..'   b'..'   b'..'
+     * 0 b'F1A..' b'02f..' b'..'  b'..'   b'..'   b'..'   b'..'   b'..'             offsets[0] = 0
      * b    0       1       2       3       4       5       6       7
      */
     /**
      * Hashtree structure class.
-     * uses a 4-D Array of bytes (row -> node -> byte)
+     * stores all nodes in one contiguous byte array, row after row starting at the leaves,
+     * with the row start positions kept in a separate offset table.
+     * once leaves are appended, every row reserves room to grow in place
      */
     private static class HashTree {
 
         /**
-         * 4-dimensional byte array that spans the tree nodes
+         * largest byte array the JVM reliably allocates
+         */
+        private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+        /**
+         * all tree nodes, NODE_SIZE bytes each, ordered by row and position in row
+         */
+        private byte[] nodes;
+
+        /**
+         * number of nodes in each row, leaf row first
+         */
+        private int[] widths;
+
+        /**
+         * number of nodes each row has room for, equal to widths until leaves are appended
+         */
+        private int[] capacities;
+
+        /**
+         * node index (not byte index) at which each row starts in nodes
          */
-        public byte[][][] rows;
+        private int[] offsets;
 
         /**
-         * Empty Constructor needed for Deserialization
+         * hash function of the nodes, set by the owning structure when a tree is loaded
          */
-        private HashTree() { /*Don't delete!!!*/}
+        private HashAlgorithm hashAlgorithm = HashAlgorithm.SHA256;
+
+        /**
+         * Constructor for an already hashed tree
+         * @param nodes node bytes, ordered by row and position in row
+         * @param widths number of nodes in each row
+         * @throws IllegalArgumentException if the widths do not form a tree or do not match the node count
+         */
+        private HashTree(byte[] nodes, int[] widths) throws IllegalArgumentException {
+
+            for (int i = 1; i < widths.length; i++)
+                if (widths[i] != (widths[i - 1] + 1) / 2) throw new IllegalArgumentException("Invalid tree shape");
+            if (widths.length == 0 || widths[widths.length - 1] != 1) throw new IllegalArgumentException("Invalid tree shape");
+
+            this.widths = widths;
+            this.capacities = widths;
+            this.offsets = offsets(widths);
+            if ((long) nodeCount(widths) * NODE_SIZE != nodes.length) throw new IllegalArgumentException("Invalid node count");
+
+            this.nodes = nodes;
+        }
 
         /**
          * Constructor
          * builds a complete binary hashtree using the given leaves
          * @param leaves set of leaves
-         * @throws ConcatException if the calculation glitches during concatenation
-         * @throws NoSuchAlgorithmException if I misspelled SHA-256
+         * @throws IllegalArgumentException if there are no leaves or too many for a single tree
          */
-        public HashTree(ArrayList<byte[]> leaves) throws ConcatException, NoSuchAlgorithmException {
+        public HashTree(ArrayList<byte[]> leaves) throws IllegalArgumentException {
 
-            int rcount = (int) Math.ceil(Math.log(leaves.size()) / ln2) + 1;
-            this.rows = new byte[rcount][][];
+            this(leaves, Integer.MAX_VALUE, true, HashAlgorithm.SHA256, ForkJoinPool.commonPool());
+        }
 
-            this.rows[0] = new byte[(int) Math.pow(2, rcount - 1)][32];
-            int offset = leaves.size();
-            leaves.toArray(this.rows[0]);
+        /**
+         * Constructor
+         * builds a binary hashtree using the given leaves,
+         * hashing subtrees concurrently if there are more than threshold leaves.
+         * the result does not depend on the threshold
+         * @param leaves set of leaves
+         * @param threshold leaf count up to which (sub)trees are built sequentially
+         * @param padded true to pad the leaf row up to the next power of two with random nodes,
+         *               false to promote lone nodes to the next row instead
+         * @param hashAlgorithm hash function of the nodes
+         * @param pool pool to hash subtrees on above the threshold
+         * @throws IllegalArgumentException if there are no leaves or too many for a single tree
+         */
+        public HashTree(ArrayList<byte[]> leaves, int threshold, boolean padded, HashAlgorithm hashAlgorithm, ForkJoinPool pool)
+                throws IllegalArgumentException {
+            if (leaves.isEmpty()) throw new IllegalArgumentException("Cannot build a tree without leaves");
+            if (leaves.size() > (1 << 30)) throw new IllegalArgumentException("Too many leaves for a single tree");
+
+            this.hashAlgorithm = hashAlgorithm;
+            int rcount = 33 - Integer.numberOfLeadingZeros(leaves.size() - 1);
+            this.widths = rowWidths(padded ? 1 << (rcount - 1) : leaves.size());
+            this.capacities = widths;
+
+            this.offsets = offsets(widths);
+            if ((long) nodeCount(widths) * NODE_SIZE > MAX_ARRAY_SIZE)
+                throw new IllegalArgumentException("Too many leaves for a single tree");
+            this.nodes = new byte[nodeCount(widths) * NODE_SIZE];
+
+            for (int i = 0; i < leaves.size(); i++) System.arraycopy(leaves.get(i), 0, nodes, i * NODE_SIZE, NODE_SIZE);
+
+            // pad leaf row up to the next power of two with random nodes (none if unpadded)
+            byte[] padding = new byte[(widths[0] - leaves.size()) * NODE_SIZE];
+            srand.nextBytes(padding);
+            System.arraycopy(padding, 0, nodes, leaves.size() * NODE_SIZE, padding.length);
+
+            if (widths[0] <= threshold) build(rcount - 1, 0);
+            else pool.invoke(new SubtreeTask(this, rcount - 1, 0, threshold));
+        }
 
-            while (offset < Math.pow(2, rcount -1)) {
+        /**
+         * computes the start index of each row
+         * @param widths number of nodes in each row
+         * @return node index at which each row starts
+         */
+        private static int[] offsets(int[] widths) {
 
-                rows[0][offset] = new byte[32];
-                srand.nextBytes(rows[0][offset]);
-                offset++;
+            int[] offsets = new int[widths.length];
+            for (int i = 1; i < widths.length; i++) offsets[i] = offsets[i - 1] + widths[i - 1];
+            return offsets;
+        }
+
+        /**
+         * computes the total node count, failing on int overflow
+         * @param widths number of nodes in each row
+         * @return total node count
+         * @throws IllegalArgumentException if the count does not fit an int
+         */
+        private static int nodeCount(int[] widths) throws IllegalArgumentException {
+
+            long count = 0;
+            for (int width : widths) count += width;
+            if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many leaves for a single tree");
+            return (int) count;
+        }
+
+        /**
+         * Getter for the number of rows, including leaf and root row
+         * @return row count
+         */
+        public int getHeight() {
+            return this.widths.length;
+        }
+
+        /**
+         * Getter for the number of nodes in a row
+         * @param level row, 0 being the leaf row
+         * @return node count
+         */
+        public int getWidth(int level) {
+            return this.widths[level];
+        }
+
+        /**
+         * computes the position of a node in the node array
+         * @param level row, 0 being the leaf row
+         * @param index position in row
+         * @return byte offset of the node in nodes
+         */
+        public int node(int level, int index) {
+            return (this.offsets[level] + index) * NODE_SIZE;
+        }
+
+        /**
+         * copies a single node out of the node array
+         * @param level row, 0 being the leaf row
+         * @param index position in row
+         * @return node bytes
+         */
+        public byte[] copyNode(int level, int index) {
+
+            int off = node(level, index);
+            return Arrays.copyOfRange(this.nodes, off, off + NODE_SIZE);
+        }
+
+        /**
+         * sequentially hashes all nodes of the subtree below (and including) the given node, row by row
+         * @param level row of the subtree root
+         * @param index position of the subtree root in its row
+         */
+        private void build(int level, int index) {
+
+            for (int i = 1; i <= level; i++) {
+
+                int to = Math.min((index + 1) << (level - i), widths[i]);
+                for (int j = index << (level - i); j < to; j++) hashNode(i, j);
             }
+        }
 
-            for (int i = 0; i < (rcount - 1); i++) {
+        /**
+         * hashes a single node from its two children, or copies a lone child that has no right sibling
+         * @param level row of the node, at least 1
+         * @param index position of the node in its row
+         */
+        private void hashNode(int level, int index) {
+
+            if ((index * 2) + 1 < widths[level - 1]) nodeHash(
+                    this.hashAlgorithm.digest(),
+                    this.nodes, node(level - 1, index * 2),
+                    this.nodes, node(level - 1, (index * 2) + 1),
+                    this.nodes, node(level, index)
+            );
+            else System.arraycopy(this.nodes, node(level - 1, index * 2), this.nodes, node(level, index), NODE_SIZE);
+        }
 
-                rows[i + 1] = new byte[rows[i].length / 2][];
+        /**
+         * ForkJoin task that builds a subtree by building both halves concurrently and then hashing its root,
+         * or sequentially if the subtree has no more leaves than the threshold
+         */
+        private static class SubtreeTask extends RecursiveAction {
+
+            /**
+             * tree to fill
+             */
+            private final HashTree tree;
+
+            /**
+             * row and row position of the subtree root
+             */
+            private final int level, index;
+
+            /**
+             * leaf count up to which the subtree is built sequentially
+             */
+            private final int threshold;
+
+            /**
+             * Constructor
+             * @param tree tree with filled leaf row
+             * @param level row of the subtree root
+             * @param index position of the subtree root in its row
+             * @param threshold leaf count up to which the subtree is built sequentially
+             */
+            SubtreeTask(HashTree tree, int level, int index, int threshold) {
+
+                this.tree = tree;
+                this.level = level;
+                this.index = index;
+                this.threshold = threshold;
+            }
 
-                int j = 0;
-                do {
-                    rows[i + 1][j] = concatHash(
-                            rows[i][j * 2],
-                            rows[i][(j * 2) + 1]
-                    );
-                    j++;
+            /**
+             * builds the subtree
+             */
+            @Override
+            protected void compute() {
+                if (index >= tree.widths[level]) return;
 
-                } while (j < (rows[i].length / 2));
+                if ((1L << level) <= threshold) {
+
+                    tree.build(level, index);
+                    return;
+                }
+
+                invokeAll(
+                        new SubtreeTask(tree, level - 1, index * 2, threshold),
+                        new SubtreeTask(tree, level - 1, (index * 2) + 1, threshold)
+                );
+                tree.hashNode(level, index);
             }
         }
 
+        /**
+         * appends two leaves to the leaf row of an unpadded tree and rehashes their ancestors,
+         * which are the only nodes that change
+         * @param left left leaf
+         * @param right right leaf
+         * @throws IllegalArgumentException if the tree would grow too large
+         */
+        public void append(byte[] left, byte[] right) throws IllegalArgumentException {
+
+            int width = widths[0] + 2;
+            if (width > (1 << 30)) throw new IllegalArgumentException("Too many leaves for a single tree");
+
+            int[] grown = rowWidths(width);
+            if (grown.length > capacities.length || grown[0] > capacities[0]) relayout(rowWidths((int) Math.max(width, Math.min(capacities[0] * 2L, 1 << 30))));
+            this.widths = grown;
+
+            System.arraycopy(left, 0, nodes, node(0, width - 2), NODE_SIZE);
+            System.arraycopy(right, 0, nodes, node(0, width - 1), NODE_SIZE);
+
+            // both leaves share all ancestors, lone nodes that just got a sibling are among them
+            for (int level = 1; level < widths.length; level++) hashNode(level, (width - 1) >> level);
+        }
+
+        /**
+         * moves all rows into a larger node array with the given room per row
+         * @param capacities number of nodes each row gets room for, at least the current widths
+         * @throws IllegalArgumentException if the node array would grow too large
+         */
+        private void relayout(int[] capacities) throws IllegalArgumentException {
+            if ((long) nodeCount(capacities) * NODE_SIZE > MAX_ARRAY_SIZE)
+                throw new IllegalArgumentException("Too many leaves for a single tree");
+
+            int[] offsets = offsets(capacities);
+            byte[] nodes = new byte[nodeCount(capacities) * NODE_SIZE];
+            for (int level = 0; level < widths.length; level++)
+                System.arraycopy(this.nodes, node(level, 0), nodes, offsets[level] * NODE_SIZE, widths[level] * NODE_SIZE);
+
+            this.nodes = nodes;
+            this.offsets = offsets;
+            this.capacities = capacities;
+        }
+
         /**
          * Getter for root node
          * @return hash at root node
          */
         public byte[] getRoot() {
-            return this.rows[this.rows.length - 1][0];
+            return copyNode(this.widths.length - 1, 0);
         }
 
         /**
          * Serialization into JSON string
-         * @return JSON String containing 4D Array
+         * @return JSON String containing the rows as arrays of Base64-encoded nodes
          * @throws JsonProcessingException if the serialization fails
          */
         public String toJSON() throws JsonProcessingException {
-            return (new ObjectMapper().writeValueAsString(this));
+            return mapper.writeValueAsString(this);
         }
 
         /**
          * Deserialization algorithm that builds the tree structure from a JSON String
-         * @param jsonString JSON String containing 4D Array that can be built back into a tree structure
-         * @return deserialized hashtree (not necessarily valid shape)
-         * @throws JsonProcessingException if the deserialization fails
+         * @param jsonString JSON String containing the rows as arrays of Base64-encoded nodes
+         * @return deserialized hashtree
+         * @throws JsonProcessingException if the deserialization fails or the rows do not form a tree
          */
         public static HashTree fromJSON(String jsonString) throws JsonProcessingException {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-            return (mapper.readValue(jsonString, HashTree.class));
+            return mapper.readValue(jsonString, HashTree.class);
+        }
+
+        /**
+         * Custom JSON Serializer writing the tree as {"rows":[[node, ...], ...],"root":node}
+         */
+        private static class CustomTreeSerializer extends StdSerializer<HashTree> {
+
+            /**
+             * Constructor calling super
+             */
+            public CustomTreeSerializer() {
+                super(HashTree.class);
+            }
+
+            /**
+             * serialization process for this class
+             * @param value instance to serialize
+             * @param gen generator
+             * @param provider provider
+             * @throws IOException upon low-level IO/encoding error
+             */
+            @Override
+            public void serialize(HashTree value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+
+                gen.writeStartObject();
+                gen.writeFieldName("rows");
+                gen.writeStartArray();
+
+                for (int i = 0; i < value.getHeight(); i++) {
+
+                    gen.writeStartArray();
+                    for (int j = 0; j < value.getWidth(i); j++) gen.writeBinary(value.nodes, value.node(i, j), NODE_SIZE);
+                    gen.writeEndArray();
+                }
+
+                gen.writeEndArray();
+
+                gen.writeFieldName("root");
+                gen.writeBinary(value.nodes, value.node(value.getHeight() - 1, 0), NODE_SIZE);
+                gen.writeEndObject();
+            }
+        }
+
+        /**
+         * Custom JSON Deserializer reading the format written by {@link CustomTreeSerializer}
+         */
+        private static class CustomTreeDeserializer extends StdDeserializer<HashTree> {
+
+            /**
+             * Constructor calling super
+             */
+            public CustomTreeDeserializer() {
+                super(HashTree.class);
+            }
+
+            /**
+             * deserialization process for this class
+             * @param p Parser
+             * @param ctxt Context
+             * @return deserialized Instance
+             * @throws IOException upon low-level read issues or if the rows do not form a tree
+             */
+            @Override
+            public HashTree deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+                if (!p.isExpectedStartObjectToken()) throw new JsonParseException(p, "Expected tree object");
+
+                HashTree tree = null;
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+
+                    String field = p.getCurrentName();
+                    p.nextToken();
+
+                    if (field.equals("rows")) tree = readRows(p);
+                    else p.skipChildren();
+                }
+
+                if (tree == null) throw new JsonParseException(p, "Missing tree rows");
+                return tree;
+            }
+
+            /**
+             * reads the rows array into one contiguous node array
+             * @param p Parser positioned at the start of the rows array
+             * @return deserialized Instance
+             * @throws IOException upon low-level read issues or if the rows do not form a tree
+             */
+            private static HashTree readRows(JsonParser p) throws IOException {
+                if (!p.isExpectedStartArrayToken()) throw new JsonParseException(p, "Expected rows array");
+
+                NodeSink nodes = new NodeSink();
+                ArrayList<Integer> widths = new ArrayList<>();
+
+                try {
+                    while (p.nextToken() == JsonToken.START_ARRAY) {
+
+                        int width = 0;
+                        while (p.nextToken() == JsonToken.VALUE_STRING) {
+
+                            if (p.readBinaryValue(nodes) != NODE_SIZE) throw new JsonParseException(p, "Invalid node size");
+                            width++;
+                        }
+
+                        if (p.currentToken() != JsonToken.END_ARRAY) throw new JsonParseException(p, "Expected node");
+
+                        // the leaf row determines the size of the whole tree, so the buffer only grows to its final size once
+                        if (widths.isEmpty() && width > 0)
+                            nodes.reserve((long) nodeCount(rowWidths(width)) * NODE_SIZE);
+                        widths.add(width);
+                    }
+
+                    if (p.currentToken() != JsonToken.END_ARRAY) throw new JsonParseException(p, "Expected row");
+
+                    return new HashTree(nodes.toByteArray(), widths.stream().mapToInt(Integer::intValue).toArray());
+
+                } catch (IllegalArgumentException e) {
+
+                    throw new JsonParseException(p, e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * growable byte buffer that Base64 node values are decoded into
+         */
+        private static class NodeSink extends OutputStream {
+
+            /**
+             * decoded bytes
+             */
+            private byte[] buf = new byte[64 * NODE_SIZE];
+
+            /**
+             * number of decoded bytes
+             */
+            private int size = 0;
+
+            /**
+             * grows the buffer to exactly the given capacity if it is smaller
+             * @param capacity total number of bytes expected
+             * @throws IllegalArgumentException if the capacity exceeds the maximum array size
+             */
+            void reserve(long capacity) throws IllegalArgumentException {
+                if (capacity > MAX_ARRAY_SIZE) throw new IllegalArgumentException("Too many leaves for a single tree");
+
+                if (capacity > buf.length) buf = Arrays.copyOf(buf, (int) capacity);
+            }
+
+            /**
+             * writes a single byte
+             * @param b byte to write
+             */
+            @Override
+            public void write(int b) {
+
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            /**
+             * writes bytes, growing the buffer if needed
+             * @param b source buffer
+             * @param off offset in source
+             * @param len number of bytes
+             */
+            @Override
+            public void write(byte[] b, int off, int len) {
+
+                if (size + len > buf.length) reserve(Math.max((long) buf.length * 2, (long) size + len));
+
+                System.arraycopy(b, off, buf, size, len);
+                size += len;
+            }
+
+            /**
+             * Getter for the content, without copying if the buffer has been filled up exactly
+             * @return decoded bytes
+             */
+            byte[] toByteArray() {
+
+                return size == buf.length ? buf : Arrays.copyOf(buf, size);
+            }
         }
     }
 
@@ -515,28 +1501,133 @@ public class Merkle {
      * @param msg message to search for
      * @return Array of Base64-URL-Strings representing each hash
      * @throws IllegalStateException if this structure has yet to be closed
-     * @throws ConcatException if the Concatenation glitches
      */
-    public String[] getPath(byte[] msg) throws IllegalStateException, IllegalArgumentException, ConcatException {
+    @Override
+    public String[] getPath(byte[] msg) throws IllegalStateException, IllegalArgumentException {
         if (!this.closed) throw new IllegalStateException("Tree has yet to be built");
-        if (lookup(msg) == -1) throw new IllegalArgumentException("message not contained in this tree");
 
-        int offset = lookup(msg) * 2;
-        if (offset < 0) throw new IllegalArgumentException("Message not contained in this tree");
+        int position = lookup(msg);
+        if (position < 0) throw new IllegalArgumentException("Message not contained in this tree");
 
-        ArrayList<String> hashes = new ArrayList<>();
-        for (byte[][] row : tree.rows) {
+        return getPath(position);
+    }
+
+    /**
+     * Getter for the Path of the message at a given order index
+     * @param position order index of the message
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IllegalStateException if this structure has yet to be closed
+     * @throws IndexOutOfBoundsException if there is no message at this position
+     */
+    @Override
+    public String[] getPath(int position) throws IllegalStateException, IndexOutOfBoundsException {
+        if (!this.closed) throw new IllegalStateException("Tree has yet to be built");
+        if (position < 0 || position >= index.size()) throw new IndexOutOfBoundsException(position);
 
-            if (row.length == 1) break;
-            if (offset % 2 == 1)
-                hashes.add(Base64URL.encode(concat("-".getBytes(StandardCharsets.UTF_8), row[offset - 1])).toString());
-            else
-                hashes.add(Base64URL.encode(row[offset + 1]).toString());
+        ArrayList<String> hashes = path(this.tree, position * 2);
+        if (this.topPath != null) hashes.addAll(Arrays.asList(this.topPath));
 
+        return hashes.toArray(new String[0]);
+    }
+
+    /**
+     * collects the siblings along the way from a node of the leaf row to the root
+     * @param tree tree to walk
+     * @param offset position of the node in the leaf row
+     * @return path nodes, left siblings prefixed with "-"
+     */
+    private static ArrayList<String> path(HashTree tree, int offset) {
+
+        // lone nodes of unpadded trees have no sibling and are promoted without a path entry
+        ArrayList<String> hashes = new ArrayList<>();
+        for (int level = 0; level < tree.getHeight() - 1; level++) {
+
+            if ((offset ^ 1) < tree.getWidth(level)) hashes.add(pathNode(tree, level, offset ^ 1));
             offset /= 2;
         }
 
-        return hashes.toArray(new String[0]);
+        return hashes;
+    }
+
+    /**
+     * builds the top tree of a {@link MerkleForest} directly over the shard roots, without salt leaves
+     * @param roots shard roots in shard order
+     * @param padded true to pad the row of shard roots up to the next power of two with random nodes
+     * @param hashAlgorithm hash function of the shards
+     * @param pool pool to hash subtrees of large top trees on
+     * @param paths receives the path from each shard root to the top root, indexed like roots
+     * @return top root
+     * @throws IllegalArgumentException if there are no roots
+     */
+    static byte[] topTree(ArrayList<byte[]> roots, boolean padded, HashAlgorithm hashAlgorithm, ForkJoinPool pool, String[][] paths)
+            throws IllegalArgumentException {
+
+        HashTree top = new HashTree(roots, DEFAULT_PARALLEL_THRESHOLD, padded, hashAlgorithm, pool);
+        for (int i = 0; i < roots.size(); i++) paths[i] = path(top, i).toArray(new String[0]);
+
+        return top.getRoot();
+    }
+
+    /**
+     * Getter for the Paths of all contained messages, computed in one left to right sweep over the tree.
+     * each sibling node is only encoded once, paths of neighbouring messages share the same String instances
+     * @return Array of Paths (as returned by {@link #getPath(byte[])}) indexed by order index
+     * @throws IllegalStateException if this structure has yet to be closed
+     */
+    public String[][] getAllPaths() throws IllegalStateException {
+        if (!this.closed) throw new IllegalStateException("Tree has yet to be built");
+
+        int count = index.size();
+        int depth = tree.getHeight() - 1;
+
+        String[][] encoded = new String[depth][];
+        for (int level = 0; level < depth; level++) encoded[level] = new String[tree.getWidth(level)];
+
+        String[][] paths = new String[count][];
+        String[] path = new String[depth];
+        for (int i = 0; i < count; i++) {
+
+            int length = 0;
+            for (int level = 0; level < depth; level++) {
+
+                int sibling = ((i * 2) >> level) ^ 1;
+                if (sibling >= tree.getWidth(level)) continue;
+
+                if (encoded[level][sibling] == null) encoded[level][sibling] = pathNode(tree, level, sibling);
+                path[length++] = encoded[level][sibling];
+            }
+            paths[i] = Arrays.copyOf(path, length + (topPath == null ? 0 : topPath.length));
+            if (topPath != null) System.arraycopy(topPath, 0, paths[i], length, topPath.length);
+        }
+
+        return paths;
+    }
+
+    /**
+     * encodes a node for use in a path, prefixed with "-" if it is a left sibling
+     * @param tree tree holding the node
+     * @param level row of the node
+     * @param index position of the node in its row
+     * @return Base64-URL-String of the (marked) node
+     */
+    private static String pathNode(HashTree tree, int level, int index) {
+
+        if (index % 2 == 0) return Base64URL.encode(leftMarked(tree.nodes, tree.node(level, index))).toString();
+        else return Base64URL.encode(tree.copyNode(level, index)).toString();
+    }
+
+    /**
+     * copies a node prefixed with the "-" marker that flags it as the left sibling in a path
+     * @param buf buffer containing the node
+     * @param off offset of the node
+     * @return marker followed by the node bytes
+     */
+    static byte[] leftMarked(byte[] buf, int off) {
+
+        byte[] marked = new byte[NODE_SIZE + 1];
+        marked[0] = (byte) '-';
+        System.arraycopy(buf, off, marked, 1, NODE_SIZE);
+        return marked;
     }
 
     /**
@@ -571,13 +1662,25 @@ public class Merkle {
             if (value.getSignature() == null || value.getCert() == null) throw new IOException();
 
             gen.writeStartObject();
+            gen.writeStringField("alg", value.getAlgorithm());
             gen.writeStringField("signature", value.getSignature().toString());
             gen.writeStringField("cert", value.getCert().toString());
 
+            if (value.topPath != null) {
+
+                gen.writeFieldName("top_path");
+                gen.writeArray(value.topPath, 0, value.topPath.length);
+            }
+            if (value.chunkSize != 0) gen.writeNumberField("chunk_size", value.chunkSize);
+
+            // the tree is streamed as a nested object ahead of the dict, so readers can check the dict as it comes in
+            provider.defaultSerializeField("tree", value.tree, gen);
+
             gen.writeFieldName("dict");
-            gen.writeArray(value.dict.toArray(new String[0]), 0, value.dict.size());
+            gen.writeStartArray();
+            for (int i = 0; i < value.index.size(); i++) gen.writeString(bytesToHex(value.index.get(i)));
+            gen.writeEndArray();
 
-            gen.writeStringField("tree", value.getTreeJSON());
             gen.writeEndObject();
         }
     }
@@ -590,13 +1693,35 @@ public class Merkle {
     public String serialize() throws JsonProcessingException, IllegalStateException {
         if (!this.initiated || !this.closed) throw new IllegalStateException("Cannot Save an unsigned Instance");
 
-        ObjectMapper mapper = new ObjectMapper();
-        SimpleModule module = new SimpleModule("CustomSerializer", new Version(1,0,0,null,null,null));
-        module.addSerializer(Merkle.class, new CustomMerkSerializer());
-        mapper.registerModule(module);
         return mapper.writeValueAsString(this);
     }
 
+    /**
+     * serialize ur signed tree straight into a stream, without building the JSON String in memory
+     * @param out stream to write to, is flushed but not closed
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if this instance has not been signed yet
+     */
+    public void serialize(OutputStream out) throws IOException, IllegalStateException {
+        if (!this.initiated || !this.closed) throw new IllegalStateException("Cannot Save an unsigned Instance");
+
+        mapper.writeValue(out, this);
+    }
+
+    /**
+     * serialize ur signed tree straight into a file
+     * @param file file to create or overwrite
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if this instance has not been signed yet
+     */
+    public void serialize(Path file) throws IOException, IllegalStateException {
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)) {
+
+            serialize(out);
+        }
+    }
+
     /**
      * Custom Deserializer class for deserializing previously saved signed trees
      * for the sake of extracting separate signatures
@@ -627,23 +1752,79 @@ public class Merkle {
          */
         @Override
         public Merkle deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (!p.isExpectedStartObjectToken()) throw new JsonParseException(p, "Expected tree file object");
 
             try {
                 Merkle merk = new Merkle();
-                ObjectCodec codec = p.getCodec();
-                JsonNode merkNode = codec.readTree(p);
 
-                JsonNode sigNode = merkNode.get("signature");
-                merk.signature = new Base64URL(sigNode.asText());
-
-                JsonNode certNode = merkNode.get("cert");
-                merk.cert = new Base64(certNode.asText());
-
-                JsonNode dictNode = merkNode.get("dict");
-                for (JsonNode elem : dictNode) merk.dict.add(elem.asText());
-
-                JsonNode treeNode = merkNode.get("tree");
-                merk.tree = HashTree.fromJSON(treeNode.asText());
+                // files written before the tree was nested hold the dict first, it is kept until the tree is known
+                ArrayList<String> pending = null;
+                boolean dict = false;
+                String alg = ALGORITHM;
+
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+
+                    String field = p.getCurrentName();
+                    p.nextToken();
+
+                    switch (field) {
+                        case "alg" -> {
+                            try {
+                                alg = p.getValueAsString("");
+                                merk.padded = isPadded(alg);
+
+                            } catch (IllegalArgumentException e) {
+
+                                throw new JsonParseException(p, e.getMessage(), e);
+                            }
+                        }
+                        case "signature" -> merk.signature = new Base64URL(p.getValueAsString());
+                        case "cert" -> merk.cert = new Base64(p.getValueAsString());
+                        case "top_path" -> {
+                            if (!p.isExpectedStartArrayToken()) throw new JsonParseException(p, "Expected top path array");
+
+                            ArrayList<String> top = new ArrayList<>();
+                            while (p.nextToken() == JsonToken.VALUE_STRING) top.add(p.getText());
+                            if (p.currentToken() != JsonToken.END_ARRAY) throw new JsonParseException(p, "Expected top path node");
+                            merk.topPath = top.toArray(new String[0]);
+                        }
+                        case "chunk_size" -> {
+                            int size = p.getValueAsInt(-1);
+                            if (!ChunkTree.validChunkSize(size)) throw new JsonParseException(p, "Invalid chunk size");
+                            merk.chunkSize = size;
+                        }
+                        case "tree" -> {
+                            // older files hold the tree as an embedded JSON String
+                            if (p.currentToken() == JsonToken.VALUE_STRING) merk.tree = HashTree.fromJSON(p.getText());
+                            else merk.tree = ctxt.readValue(p, HashTree.class);
+
+                            if (pending != null) for (String hex : pending) addDictEntry(merk, hex, p);
+                            pending = null;
+                        }
+                        case "dict" -> {
+                            if (!p.isExpectedStartArrayToken()) throw new JsonParseException(p, "Expected dict array");
+                            dict = true;
+
+                            if (merk.tree == null) pending = new ArrayList<>();
+                            while (p.nextToken() == JsonToken.VALUE_STRING) {
+
+                                if (pending != null) pending.add(p.getText());
+                                else addDictEntry(merk, p.getText(), p);
+                            }
+                            if (p.currentToken() != JsonToken.END_ARRAY) throw new JsonParseException(p, "Expected dict entry");
+                        }
+                        default -> p.skipChildren();
+                    }
+                }
+
+                if (merk.signature == null || merk.cert == null || merk.tree == null || !dict)
+                    throw new JsonParseException(p, "Incomplete tree file");
+
+                // files without "alg" predate unpadded trees
+                if (!validShape(merk.padded, merk.index.size(), merk.tree.getWidth(0)))
+                    throw new JsonParseException(p, "Tree shape does not match algorithm");
+                merk.useHashAlgorithm(HashAlgorithm.fromAlgorithm(alg));
+                merk.signatureAlgorithm = SignatureAlgorithm.fromAlgorithm(alg);
 
                 merk.initiated = true;
                 merk.closed = true;
@@ -655,6 +1836,23 @@ public class Merkle {
                 throw new IOException(e);
             }
         }
+
+        /**
+         * adds the next message hash from the leaf row to the index and checks it against its dict entry.
+         * the message hashes are every other leaf, the dict is only checked against them
+         * @param merk instance with deserialized tree
+         * @param hex dict entry
+         * @param p Parser, for error reporting
+         * @throws JsonParseException if the entry does not match the tree
+         */
+        private static void addDictEntry(Merkle merk, String hex, JsonParser p) throws JsonParseException {
+
+            int i = merk.index.size();
+            if ((i + 1) * 2 > merk.tree.getWidth(0)) throw new JsonParseException(p, "dict does not match tree");
+
+            merk.index.add(merk.tree.nodes, merk.tree.node(0, i * 2));
+            if (!bytesToHex(merk.index.get(i)).equals(hex)) throw new JsonParseException(p, "dict does not match tree");
+        }
     }
 
     /**
@@ -665,11 +1863,284 @@ public class Merkle {
      */
     public static Merkle fromJSON(String jsonString) throws JsonProcessingException {
 
-        ObjectMapper mapper = new ObjectMapper();
-        SimpleModule module = new SimpleModule("CustomDeserializer", new Version(1,0,0,null,null,null));
-        module.addDeserializer(Merkle.class, new CustomMerkDeserializer());
-        mapper.registerModule(module);
-
         return mapper.readValue(jsonString, Merkle.class);
     }
+
+    /**
+     * Build a new Instance from JSON data read from a stream, without buffering the whole document as a String
+     * @param in stream to read from, is not closed
+     * @return closed instance (no key data, only certificate)
+     * @throws IOException if reading fails or the data is not a valid signed tree
+     */
+    public static Merkle fromJSON(InputStream in) throws IOException {
+
+        return mapper.readValue(in, Merkle.class);
+    }
+
+    /**
+     * Build a new Instance from a JSON tree file
+     * @param file file to read
+     * @return closed instance (no key data, only certificate)
+     * @throws IOException if reading fails or the file is not a valid signed tree
+     */
+    public static Merkle fromJSON(Path file) throws IOException {
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+
+            return fromJSON(in);
+        }
+    }
+
+    /*
+     * binary tree format (big endian):
+     *
+     * 4 bytes   magic "HTSB"
+     * 1 byte    format version
+     * UTF       JWS algorithm identifier (modified UTF-8 with 2 byte length, see DataOutput#writeUTF)
+     * int + n   raw root signature
+     * int + n   DER encoded certificate
+     * int       number of messages
+     * int       number of nodes in the leaf row, the upper rows each hold (w + 1) / 2 nodes
+     * int       number of top path nodes (since version 2, 0 unless the tree is a shard of a forest)
+     * n * 33    top path nodes, a "-" marker byte for left siblings (0 otherwise) followed by the node
+     * int       chunk size (since version 3, 0 unless in chunked leaf mode)
+     * n * 32    all nodes, row after row starting with the leaves
+     *
+     * the lookup index is not stored, every other leaf of the leaf row is a message hash
+     */
+    /**
+     * write the signed tree in the compact binary format
+     * @param out stream to write to, is flushed but not closed
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if this instance has not been signed yet
+     */
+    public void writeBinary(OutputStream out) throws IOException, IllegalStateException {
+        if (!this.initiated || !this.closed || this.signature == null || this.cert == null)
+            throw new IllegalStateException("Cannot Save an unsigned Instance");
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+
+        data.write(BINARY_MAGIC);
+        data.writeByte(BINARY_VERSION);
+        data.writeUTF(getAlgorithm());
+
+        byte[] sig = this.signature.decode();
+        data.writeInt(sig.length);
+        data.write(sig);
+
+        byte[] certBytes = this.cert.decode();
+        data.writeInt(certBytes.length);
+        data.write(certBytes);
+
+        data.writeInt(this.index.size());
+        data.writeInt(this.tree.getWidth(0));
+        writeTopPath(data, this.topPath);
+        data.writeInt(this.chunkSize);
+        for (int level = 0; level < this.tree.getHeight(); level++)
+            data.write(this.tree.nodes, this.tree.node(level, 0), this.tree.getWidth(level) * NODE_SIZE);
+
+        data.flush();
+    }
+
+    /**
+     * write the signed tree in the compact binary format into a file
+     * @param file file to create or overwrite
+     * @throws IOException if writing fails
+     * @throws IllegalStateException if this instance has not been signed yet
+     */
+    public void writeBinary(Path file) throws IOException, IllegalStateException {
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+
+            writeBinary(out);
+        }
+    }
+
+    /**
+     * write the signed tree through a temporary file next to the target, which is then moved into place,
+     * so the target never holds a partially written tree.
+     * the temporary file is created with the default permissions of a new file (subject to the umask)
+     * and takes over the POSIX permissions of a replaced target
+     * @param target file to create or replace
+     * @param binary true for the compact binary format, false for JSON
+     * @throws IOException if writing or moving fails
+     * @throws IllegalStateException if this instance has not been signed yet
+     */
+    public void write(Path target, boolean binary) throws IOException, IllegalStateException {
+
+        // Files.createTempFile would create the file readable by the owner only, which would survive the move
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = dir.resolve("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+
+                if (binary) writeBinary(out);
+                else serialize(out);
+
+                out.flush();
+                channel.force(true);
+            }
+            copyPermissions(target, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        } finally {
+
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * copies the POSIX permissions of an existing file, doing nothing if it does not exist or the file system has none
+     * @param source file whose permissions are copied
+     * @param target file that receives them
+     * @throws IOException if the permissions cannot be read or set
+     */
+    private static void copyPermissions(Path source, Path target) throws IOException {
+        if (!Files.exists(source) || Files.getFileAttributeView(source, PosixFileAttributeView.class) == null) return;
+
+        Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+    }
+
+    /**
+     * Build a new Instance from data saved in the compact binary format
+     * @param in stream to read from, is not closed
+     * @return closed instance (no key data, only certificate)
+     * @throws IOException if reading fails or the data is not a valid signed tree
+     */
+    public static Merkle fromBinary(InputStream in) throws IOException {
+
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+
+        byte[] magic = new byte[BINARY_MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, BINARY_MAGIC)) throw new IOException("Not a binary tree file");
+        int version = data.readUnsignedByte();
+        if (version < 1 || version > BINARY_VERSION) throw new IOException("Unsupported binary tree format version");
+        try {
+            Merkle merk = new Merkle();
+            String alg = data.readUTF();
+            merk.padded = isPadded(alg);
+
+            merk.signature = Base64URL.encode(readField(data));
+            merk.cert = Base64.encode(readField(data));
+
+            int count = data.readInt();
+            int width = data.readInt();
+            if (count < 0 || width < 1 || !validShape(merk.padded, count, width)) throw new IOException("Invalid tree size");
+            if (version >= 2) merk.topPath = readTopPath(data);
+            if (version >= 3) merk.chunkSize = readChunkSize(data);
+
+            int[] widths = rowWidths(width);
+            if ((long) HashTree.nodeCount(widths) * NODE_SIZE > HashTree.MAX_ARRAY_SIZE) throw new IOException("Invalid tree size");
+            byte[] nodes = new byte[HashTree.nodeCount(widths) * NODE_SIZE];
+            data.readFully(nodes);
+            merk.tree = new HashTree(nodes, widths);
+            merk.useHashAlgorithm(HashAlgorithm.fromAlgorithm(alg));
+            merk.signatureAlgorithm = SignatureAlgorithm.fromAlgorithm(alg);
+
+            merk.index.ensureCapacity(count);
+            for (int i = 0; i < count; i++) merk.index.add(nodes, merk.tree.node(0, i * 2));
+
+            merk.initiated = true;
+            merk.closed = true;
+
+            return merk;
+
+        } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
+
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Build a new Instance from a file saved in the compact binary format
+     * @param file file to read
+     * @return closed instance (no key data, only certificate)
+     * @throws IOException if reading fails or the file is not a valid signed tree
+     */
+    public static Merkle fromBinary(Path file) throws IOException {
+
+        try (InputStream in = Files.newInputStream(file)) {
+
+            return fromBinary(in);
+        }
+    }
+
+    /**
+     * reads a length-prefixed byte field of the binary format
+     * @param data stream to read from
+     * @return field content
+     * @throws IOException if reading fails or the length is out of bounds
+     */
+    static byte[] readField(DataInputStream data) throws IOException {
+
+        int length = data.readInt();
+        if (length < 0 || length > MAX_BINARY_FIELD) throw new IOException("Invalid field length");
+
+        byte[] field = new byte[length];
+        data.readFully(field);
+        return field;
+    }
+
+    /**
+     * reads the chunk size field of the binary format
+     * @param data stream to read from
+     * @return chunk size, 0 if not in chunked leaf mode
+     * @throws IOException if reading fails or the chunk size is invalid
+     */
+    static int readChunkSize(DataInputStream data) throws IOException {
+
+        int chunkSize = data.readInt();
+        if (chunkSize != 0 && !ChunkTree.validChunkSize(chunkSize)) throw new IOException("Invalid chunk size");
+        return chunkSize;
+    }
+
+    /**
+     * writes the top path field of the binary format
+     * @param data stream to write to
+     * @param topPath path nodes as returned in paths, or null for none
+     * @throws IOException if writing fails
+     */
+    static void writeTopPath(DataOutputStream data, @Nullable String[] topPath) throws IOException {
+
+        if (topPath == null) {
+
+            data.writeInt(0);
+            return;
+        }
+
+        data.writeInt(topPath.length);
+        for (String node : topPath) {
+
+            byte[] bytes = new Base64URL(node).decode();
+            if (bytes.length == NODE_SIZE) data.writeByte(0);
+            data.write(bytes);
+        }
+    }
+
+    /**
+     * reads the top path field of the binary format
+     * @param data stream to read from
+     * @return path nodes as returned in paths, null if there are none
+     * @throws IOException if reading fails or a node is invalid
+     */
+    static @Nullable String[] readTopPath(DataInputStream data) throws IOException {
+
+        int length = data.readInt();
+        if (length < 0 || length > 32) throw new IOException("Invalid top path length");
+        if (length == 0) return null;
+
+        String[] topPath = new String[length];
+        byte[] node = new byte[NODE_SIZE + 1];
+        for (int i = 0; i < length; i++) {
+
+            data.readFully(node);
+            if (node[0] == '-') topPath[i] = Base64URL.encode(node).toString();
+            else if (node[0] == 0) topPath[i] = Base64URL.encode(Arrays.copyOfRange(node, 1, node.length)).toString();
+            else throw new IOException("Invalid top path node");
+        }
+        return topPath;
+    }
+
 }
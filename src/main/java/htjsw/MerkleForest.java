@@ -0,0 +1,503 @@
+package htjsw;
+
+import com.nimbusds.jose.util.Base64;
+import com.nimbusds.jose.util.Base64URL;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.*;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Hashtree signature over batches whose tree should not be built in one piece by a single {@link Merkle}.
+ * messages are split into shards of a fixed size, every full shard is built on a pool while the next one is filled.
+ * the shard roots form the leaves of a top tree, whose root is the only one signed.
+ * paths run from the message up to its shard root and on to the top root, so they verify like any other path.
+ * all shards stay on the heap for as long as the forest is referenced, so sharding only provides parallel
+ * shard building and a single signature, not a smaller memory footprint than one large tree.
+ * lookups go through one forest-wide table that routes a hash to its shard, the hashes themselves stay in the shards.
+ * not thread-safe, messages are to be added from a single thread
+ * @author F. Krause
+ */
+public class MerkleForest implements SignedTree {
+
+    /**
+     * default number of messages per shard
+     */
+    public static final int DEFAULT_SHARD_SIZE = 1 << 20;
+
+    /**
+     * largest shard size, a shard holds two leaves per message
+     */
+    private static final int MAX_SHARD_SIZE = 1 << 29;
+
+    /**
+     * largest lookup table, the largest power of two an int array can hold
+     */
+    private static final int MAX_SLOTS = 1 << 30;
+
+    /**
+     * largest number of messages, filling the largest lookup table to seven eighths
+     */
+    private static final int MAX_COUNT = MAX_SLOTS - MAX_SLOTS / 8;
+
+    /**
+     * number of messages per shard
+     */
+    private final int shardSize;
+
+    /**
+     * shape of the shards and the top tree, see {@link Merkle#isPadded()}
+     */
+    private final boolean padded;
+
+    /**
+     * hash function of the shards and the top tree
+     */
+    private final HashAlgorithm hashAlgorithm;
+
+    /**
+     * pool the shards are built on
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * root signature generator
+     */
+    private final Signature signer;
+
+    /**
+     * algorithm of the root signature, determined by the key
+     */
+    private final SignatureAlgorithm signatureAlgorithm;
+
+    /**
+     * X.509 certificate as Base64-encoded Bytes
+     */
+    private final Base64 cert;
+
+    /**
+     * all shards in order, the last one is still being filled unless it has been handed to the pool
+     */
+    private final ArrayList<Merkle> shards;
+
+    /**
+     * pending shard builds
+     */
+    private final ArrayList<ForkJoinTask<?>> builds;
+
+    /**
+     * forest-wide lookup table, holding (order index + 1) of the first occurrence of a message hash, 0 for empty slots.
+     * the hash of an order index is read from the shard it belongs to
+     */
+    private int[] slots;
+
+    /**
+     * shard that is currently filled, null if the next message starts a new one
+     */
+    private @Nullable Merkle current;
+
+    /**
+     * total number of messages
+     */
+    private int count;
+
+    /**
+     * signature over the top root, null until signed
+     */
+    private @Nullable Base64URL signature;
+
+    /**
+     * status bool
+     */
+    private boolean closed;
+
+    /**
+     * Constructor with default shard size, padded SHA-256 trees and shards built on the common ForkJoinPool
+     * @param key EC or Ed25519 key object
+     * @param cert certificate object
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     * @throws InvalidKeyException if the key cannot be used for signing
+     * @throws CertificateEncodingException if the certificate cannot be encoded
+     */
+    public MerkleForest(PrivateKey key, X509Certificate cert)
+            throws NoSuchAlgorithmException, InvalidKeyException, CertificateEncodingException {
+
+        this(key, cert, DEFAULT_SHARD_SIZE, true, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for SHA-256 trees
+     * @param key EC or Ed25519 key object
+     * @param cert certificate object
+     * @param shardSize number of messages per shard
+     * @param padded true for padded shards and top tree (HTES256 or HTED256), false for unpadded ones
+     * @param pool pool to build the shards on
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms
+     * @throws InvalidKeyException if the key cannot be used for signing
+     * @throws CertificateEncodingException if the certificate cannot be encoded
+     * @throws IllegalArgumentException if the shard size is out of bounds
+     */
+    public MerkleForest(PrivateKey key, X509Certificate cert, int shardSize, boolean padded, ForkJoinPool pool)
+            throws NoSuchAlgorithmException, InvalidKeyException, CertificateEncodingException, IllegalArgumentException {
+
+        this(key, cert, shardSize, padded, HashAlgorithm.SHA256, pool);
+    }
+
+    /**
+     * Constructor
+     * @param key EC or Ed25519 key object, its type determines the signature algorithm
+     * @param cert certificate object
+     * @param shardSize number of messages per shard
+     * @param padded true for padded shards and top tree, false for unpadded ones
+     * @param hashAlgorithm hash function of the shards and the top tree
+     * @param pool pool to build the shards on
+     * @throws NoSuchAlgorithmException if I misspelled one of the Algorithms or the hash function is not supported
+     * @throws InvalidKeyException if the key cannot be used for signing or is of an unsupported type
+     * @throws CertificateEncodingException if the certificate cannot be encoded
+     * @throws IllegalArgumentException if the shard size is out of bounds
+     */
+    public MerkleForest(PrivateKey key, X509Certificate cert, int shardSize, boolean padded, HashAlgorithm hashAlgorithm, ForkJoinPool pool)
+            throws NoSuchAlgorithmException, InvalidKeyException, CertificateEncodingException, IllegalArgumentException {
+        if (shardSize < 1 || shardSize > MAX_SHARD_SIZE) throw new IllegalArgumentException("Invalid shard size");
+
+        MessageDigest.getInstance(hashAlgorithm.getJCAName());
+        this.shardSize = shardSize;
+        this.padded = padded;
+        this.hashAlgorithm = hashAlgorithm;
+        this.pool = pool;
+
+        this.signatureAlgorithm = SignatureAlgorithm.fromKey(key);
+        this.signer = this.signatureAlgorithm.newSignature(null);
+        this.signer.initSign(key, new SecureRandom());
+        this.cert = Base64.encode(cert.getEncoded());
+
+        this.shards = new ArrayList<>();
+        this.builds = new ArrayList<>();
+        this.slots = new int[32];
+    }
+
+    /**
+     * Getter for the JWS algorithm identifier
+     * @return "HTES" for ECDSA or "HTED" for Ed25519 root signatures, followed by the hash token and "U" for unpadded trees,
+     *         e.g. {@value Merkle#ALGORITHM} for padded ECDSA signed SHA-256 trees
+     * @see HashAlgorithm#getAlgorithm(SignatureAlgorithm, boolean)
+     * @see SignatureAlgorithm
+     */
+    @Override
+    public String getAlgorithm() {
+
+        return this.hashAlgorithm.getAlgorithm(this.signatureAlgorithm, this.padded);
+    }
+
+    /**
+     * Getter for the hash function
+     * @return hash function of the shards and the top tree
+     */
+    @Override
+    public HashAlgorithm getHashAlgorithm() {
+
+        return this.hashAlgorithm;
+    }
+
+    /**
+     * Getter for signature
+     * @return signature over the top root hash (ECDSA with SHA256 or Ed25519) encoded as Base64 URL, null if not signed
+     */
+    @Override
+    public @Nullable Base64URL getSignature() {
+
+        return this.signature;
+    }
+
+    /**
+     * Getter for Certificate
+     * @return X.509 certificate encoded in Base64
+     */
+    @Override
+    public Base64 getCert() {
+
+        return this.cert;
+    }
+
+    /**
+     * Getter for the number of contained messages
+     * @return message count
+     */
+    public int size() {
+
+        return this.count;
+    }
+
+    /**
+     * Getter for status
+     * @return true if the forest has been closed and signed
+     */
+    public boolean isClosed() {
+
+        return this.closed;
+    }
+
+    /**
+     * Getter for the shards.
+     * once signed, every shard is a signed tree of its own whose paths lead up to the signed top root,
+     * so each can be saved with {@link Merkle#writeBinary(Path)} and later be loaded or mapped on its own.
+     * the forest keeps referencing them, to free the memory the forest itself has to be dropped
+     * @return unmodifiable list of shards in order
+     * @throws IllegalStateException if the forest has yet to be signed
+     */
+    public List<Merkle> getShards() throws IllegalStateException {
+        if (!this.closed) throw new IllegalStateException("Forest has yet to be built");
+
+        return Collections.unmodifiableList(this.shards);
+    }
+
+    /**
+     * add a message
+     * @param msg raw bytes
+     * @throws IllegalStateException if this forest is closed already
+     * @throws IllegalArgumentException if the forest is full
+     */
+    public void add(byte[] msg) throws IllegalStateException, IllegalArgumentException {
+
+        shard().add(msg);
+        added();
+    }
+
+    /**
+     * add a message read from a file in chunks
+     * @param file file containing the raw message
+     * @throws IllegalStateException if this forest is closed already
+     * @throws IllegalArgumentException if the forest is full
+     * @throws IOException if the file cannot be read
+     */
+    public void add(Path file) throws IllegalStateException, IllegalArgumentException, IOException {
+
+        shard().add(file);
+        added();
+    }
+
+    /**
+     * add a message that has already been hashed, e.g. concurrently by the caller
+     * @param digest hash of the raw message, see {@link #getHashAlgorithm()}
+     * @throws IllegalStateException if this forest is closed already
+     * @throws IllegalArgumentException if the forest is full or the digest is not 32 bytes long
+     */
+    public void addDigest(byte[] digest) throws IllegalStateException, IllegalArgumentException {
+
+        shard().addDigest(digest);
+        added();
+    }
+
+    /**
+     * Getter for the shard the next message goes to, starting a new one if needed
+     * @return open shard
+     * @throws IllegalStateException if this forest is closed already
+     * @throws IllegalArgumentException if the forest is full
+     */
+    private Merkle shard() throws IllegalStateException, IllegalArgumentException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+        if (this.count == MAX_COUNT) throw new IllegalArgumentException("Too many messages for a single forest");
+
+        if (this.current == null) {
+            try {
+                this.current = new Merkle();
+                this.current.setHashAlgorithm(this.hashAlgorithm);
+
+            } catch (NoSuchAlgorithmException e) {
+
+                throw new IllegalStateException(this.hashAlgorithm.getJCAName() + " not supported", e);
+            }
+            this.current.setPadded(this.padded);
+        }
+        return this.current;
+    }
+
+    /**
+     * counts an added message, registering a new shard with its first message, entering the message into the lookup table
+     * and handing the current shard to the pool once it is full.
+     * a shard whose first add failed is never registered, so it cannot end up empty in the forest
+     */
+    private void added() {
+
+        if (this.current == null) return;
+
+        if (this.current.size() == 1) this.shards.add(this.current);
+        if ((this.count + 1) * 2L > this.slots.length && this.slots.length < MAX_SLOTS) rehash(this.slots.length * 2);
+
+        int slot = find(this.count);
+        if (this.slots[slot] == 0) this.slots[slot] = this.count + 1;
+        this.count++;
+
+        if (this.current.size() == this.shardSize) seal();
+    }
+
+    /**
+     * linear probing for the slot that holds the hash of the message at the given order index or the empty slot it belongs in
+     * @param position order index of a message that has already been added to its shard
+     * @return slot index
+     */
+    private int find(int position) {
+
+        DigestIndex index = this.shards.get(position / this.shardSize).getIndex();
+        int local = position % this.shardSize;
+
+        int mask = this.slots.length - 1;
+        int slot = index.prefix(local) & mask;
+
+        while (this.slots[slot] != 0) {
+
+            int other = this.slots[slot] - 1;
+            if (index.matches(local, this.shards.get(other / this.shardSize).getIndex(), other % this.shardSize)) break;
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * rebuilds the lookup table with a new size, keeping first occurrences
+     * @param length new table size, a power of two
+     */
+    private void rehash(int length) {
+
+        this.slots = new int[length];
+        for (int i = 0; i < this.count; i++) {
+
+            int slot = find(i);
+            if (this.slots[slot] == 0) this.slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * hands the current shard to the pool to be built, dropping it if it is still empty
+     */
+    private void seal() {
+
+        Merkle shard = this.current;
+        this.current = null;
+        if (shard != null && shard.size() > 0) this.builds.add(this.pool.submit(() -> shard.build(this.pool)));
+    }
+
+    /**
+     * close and sign, waiting for all shards to be built and signing the root of the tree over their roots
+     * @throws IllegalStateException if this forest is closed already, empty or signing fails
+     */
+    public void closeAndSign() throws IllegalStateException {
+        if (this.closed) throw new IllegalStateException("This Structure is closed and signed already");
+        if (this.shards.isEmpty()) throw new IllegalStateException("Cannot build a tree without leaves");
+
+        seal();
+        for (ForkJoinTask<?> build : this.builds) build.join();
+        this.builds.clear();
+
+        ArrayList<byte[]> roots = new ArrayList<>(this.shards.size());
+        for (Merkle shard : this.shards) roots.add(shard.getRoot());
+
+        String[][] topPaths = new String[roots.size()][];
+        byte[] root = Merkle.topTree(roots, this.padded, this.hashAlgorithm, this.pool, topPaths);
+
+        try {
+            this.signer.update(root);
+            this.signature = Base64URL.encode(this.signer.sign());
+
+        } catch (SignatureException e) {
+
+            throw new IllegalStateException("Key has not been initiated properly", e);
+        }
+
+        for (int i = 0; i < this.shards.size(); i++) this.shards.get(i).attach(topPaths[i], this.signature, this.signatureAlgorithm, this.cert);
+        this.closed = true;
+    }
+
+    /**
+     * Returns the order index, aka what turn it is added into the forest when inserting all the messages (starting at 0)
+     * @param msg message to search for
+     * @return order index of the given message in this forest, or -1 if it is not contained
+     */
+    @Override
+    public int lookup(byte[] msg) {
+
+        return lookupDigest(this.hashAlgorithm.digest().digest(msg));
+    }
+
+    /**
+     * Returns the order index of a message by its hash
+     * @param digest hash of the message, see {@link #getHashAlgorithm()}
+     * @return order index of the given message in this forest, or -1 if it is not contained
+     */
+    @Override
+    public int lookupDigest(byte[] digest) {
+        if (digest.length != Merkle.NODE_SIZE) return -1;
+
+        int mask = this.slots.length - 1;
+        int slot = DigestIndex.prefix(digest, 0) & mask;
+
+        while (this.slots[slot] != 0) {
+
+            int position = this.slots[slot] - 1;
+            if (this.shards.get(position / this.shardSize).getIndex().matches(position % this.shardSize, digest, 0)) return position;
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Getter for the Path to the top root along which a given message can be found's Neighbours,
+     * first within its shard, then within the top tree
+     * @param msg message to search for
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IllegalStateException if the forest has yet to be signed
+     * @throws IllegalArgumentException if the message is not contained in the forest
+     */
+    @Override
+    public String[] getPath(byte[] msg) throws IllegalStateException, IllegalArgumentException {
+        if (!this.closed) throw new IllegalStateException("Forest has yet to be built");
+
+        int position = lookup(msg);
+        if (position < 0) throw new IllegalArgumentException("Message not contained in this forest");
+
+        return getPath(position);
+    }
+
+    /**
+     * Getter for the Path of the message at a given order index
+     * @param position order index of the message
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IllegalStateException if the forest has yet to be signed
+     * @throws IndexOutOfBoundsException if there is no message at this position
+     */
+    @Override
+    public String[] getPath(int position) throws IllegalStateException, IndexOutOfBoundsException {
+        if (!this.closed) throw new IllegalStateException("Forest has yet to be built");
+        if (position < 0 || position >= this.count) throw new IndexOutOfBoundsException(position);
+
+        // all shards but the last are full
+        return this.shards.get(position / this.shardSize).getPath(position % this.shardSize);
+    }
+}
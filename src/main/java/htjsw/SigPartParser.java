@@ -0,0 +1,485 @@
+package htjsw;
+
+import com.nimbusds.jose.JOSEException;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Single pass parser for the signature part of a hashtree JWS ({"ht_path":[...],"ecdsa_sig":...}).
+ * hashes the payload straight from the signing input, then folds each path node into the root
+ * while it is decoded, all within buffers that are reused between calls.
+ * instances are not thread-safe, the verifier keeps one per thread
+ * @author F. Krause
+ */
+final class SigPartParser {
+
+    /**
+     * Base64 decoding table, accepting both the URL-safe and the standard alphabet, -1 for invalid characters
+     */
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        for (int i = 0; i < alphabet.length(); i++) DECODE[alphabet.charAt(i)] = (byte) i;
+        DECODE['-'] = DECODE['+'] = 62;
+        DECODE['_'] = DECODE['/'] = 63;
+    }
+
+    /**
+     * field names of the signature part
+     */
+    private static final byte[] HT_PATH = {'h', 't', '_', 'p', 'a', 't', 'h'}, ECDSA_SIG = {'e', 'c', 'd', 's', 'a', '_', 's', 'i', 'g'},
+            HT_CHUNK_PATH = {'h', 't', '_', 'c', 'h', 'u', 'n', 'k', '_', 'p', 'a', 't', 'h'};
+
+    /**
+     * decoded JSON of the signature part
+     */
+    private byte[] json = new byte[1024];
+
+    /**
+     * number of valid bytes in json
+     */
+    private int length;
+
+    /**
+     * read position in json
+     */
+    private int pos;
+
+    /**
+     * running hash, from message hash to root
+     */
+    private final byte[] root = new byte[Merkle.NODE_SIZE];
+
+    /**
+     * decoded path node, with room for the left marker
+     */
+    private final byte[] node = new byte[Merkle.NODE_SIZE + 1];
+
+    /**
+     * decoded root signature
+     */
+    private byte[] signature = new byte[128];
+
+    /**
+     * length of the decoded root signature
+     */
+    private int signatureLength;
+
+    /**
+     * buffer the payload is decoded into chunk by chunk while hashing
+     */
+    private final byte[] chunk = new byte[3 * 1024];
+
+    /**
+     * chunk hashes of a payload in chunked leaf mode, grown on demand
+     */
+    private byte[] chunkHashes = new byte[0];
+
+    /**
+     * parses the signature part and computes the root hash the path leads to.
+     * JWSs proving a single chunk need a non-empty "ht_chunk_path", which is folded with tagged chunk tree nodes before "ht_path"
+     * @param signingInput the JWS "signing input" in Header.Payload format, as ASCII bytes
+     * @param sigPart Base64URL encoded signature part
+     * @param digest SHA-256 digest to hash with
+     * @param chunkSize chunk size of the tree, 0 if messages are hashed as a whole
+     * @param chunkIndex index of the chunk the payload holds, -1 if it holds the whole message
+     * @throws JOSEException if the signing input or signature part is malformed, or a chunk payload is too long
+     */
+    void parse(byte[] signingInput, CharSequence sigPart, MessageDigest digest, int chunkSize, long chunkIndex) throws JOSEException {
+
+        hashPayload(signingInput, digest, chunkSize, chunkIndex);
+
+        // decode the whole signature part, it is only a few hundred bytes
+        int max = sigPart.length() / 4 * 3 + 2;
+        if (json.length < max) json = new byte[Math.max(max, json.length * 2)];
+        length = decode(sigPart, 0, sigPart.length(), json, 0);
+        pos = 0;
+
+        boolean sig = false;
+        int path = -1, chunkPath = -1;
+
+        expect('{');
+        if (!consume('}')) {
+            do {
+
+                int keyStart = string();
+                int keyEnd = pos - 1;
+                expect(':');
+
+                // paths are folded once the whole part is read, as the chunk path has to come first
+                if (Arrays.equals(json, keyStart, keyEnd, HT_PATH, 0, HT_PATH.length)) {
+
+                    skipWhitespace();
+                    path = pos;
+                    skipValue();
+
+                } else if (Arrays.equals(json, keyStart, keyEnd, HT_CHUNK_PATH, 0, HT_CHUNK_PATH.length)) {
+
+                    skipWhitespace();
+                    chunkPath = pos;
+                    skipValue();
+
+                } else if (Arrays.equals(json, keyStart, keyEnd, ECDSA_SIG, 0, ECDSA_SIG.length)) {
+
+                    int start = string();
+                    int end = pos - 1;
+                    if (signature.length < (end - start) / 4 * 3 + 2) signature = new byte[(end - start) / 4 * 3 + 2];
+                    signatureLength = decode(json, start, end, signature, 0);
+                    sig = true;
+
+                } else skipValue();
+
+            } while (consume(','));
+            expect('}');
+        }
+
+        skipWhitespace();
+        if (pos != length) throw new JOSEException("Trailing data in signature part");
+        if (path < 0 || !sig || (chunkIndex >= 0) != (chunkPath >= 0)) throw new JOSEException("Incomplete signature part");
+
+        if (chunkPath >= 0) {
+
+            pos = chunkPath;
+            if (foldPath(digest, true) == 0) throw new JOSEException("Empty chunk path");
+        }
+        pos = path;
+        foldPath(digest, false);
+    }
+
+    /**
+     * Getter for the root hash computed by the last {@link #parse}
+     * @return internal buffer holding the root hash
+     */
+    byte[] root() {
+        return this.root;
+    }
+
+    /**
+     * Getter for the root signature read by the last {@link #parse}
+     * @return internal buffer holding the signature, see {@link #signatureLength()}
+     */
+    byte[] signature() {
+        return this.signature;
+    }
+
+    /**
+     * Getter for the length of the root signature read by the last {@link #parse}
+     * @return number of valid bytes in {@link #signature()}
+     */
+    int signatureLength() {
+        return this.signatureLength;
+    }
+
+    /**
+     * hashes the payload part of the signing input into root, decoding it in chunks
+     * @param signingInput the JWS "signing input" in Header.Payload format
+     * @param digest SHA-256 digest to hash with
+     * @param chunkSize chunk size of the tree, 0 if messages are hashed as a whole
+     * @param chunkIndex index of the chunk the payload holds, -1 if it holds the whole message
+     * @throws JOSEException if the payload is not valid Base64URL or a chunk payload is too long
+     */
+    private void hashPayload(byte[] signingInput, MessageDigest digest, int chunkSize, long chunkIndex) throws JOSEException {
+
+        int start = 0;
+        while (start < signingInput.length && signingInput[start] != '.') start++;
+        if (start == signingInput.length) throw new JOSEException("Missing payload");
+        start++;
+
+        int end = signingInput.length;
+        while (end > start && signingInput[end - 1] == '=') end--;
+        long length = (long) (end - start) * 3 / 4;
+
+        if (chunkIndex >= 0) {
+
+            if (length > chunkSize) throw new JOSEException("Chunk payload longer than the chunk size");
+            ChunkTree.startChunk(digest, chunkIndex);
+
+        } else if (chunkSize != 0 && length > chunkSize) {
+
+            hashChunked(signingInput, start, digest, chunkSize, ChunkTree.chunkCount(length, chunkSize));
+            return;
+        }
+
+        // whole groups of four characters per chunk, so no group is split between chunks
+        int step = chunk.length / 3 * 4;
+        try {
+            for (int from = start; from < signingInput.length; from += step)
+                digest.update(chunk, 0, decode(signingInput, from, Math.min(from + step, signingInput.length), chunk, 0));
+
+            digest.digest(root, 0, Merkle.NODE_SIZE);
+
+        } catch (DigestException e) {
+
+            throw new JOSEException("Unable to hash payload", e);
+
+        } finally {
+
+            digest.reset();
+        }
+    }
+
+    /**
+     * hashes a payload longer than a chunk into root, as the root of the tree over its chunk hashes
+     * @param signingInput the JWS "signing input" in Header.Payload format
+     * @param start index of the payload in the signing input
+     * @param digest SHA-256 digest to hash with
+     * @param chunkSize chunk size of the tree
+     * @param count number of chunks
+     * @throws JOSEException if the payload is not valid Base64URL
+     */
+    private void hashChunked(byte[] signingInput, int start, MessageDigest digest, int chunkSize, int count) throws JOSEException {
+
+        if (chunkHashes.length < count * Merkle.NODE_SIZE) chunkHashes = new byte[count * Merkle.NODE_SIZE];
+
+        int step = chunk.length / 3 * 4;
+        int index = 0, filled = 0;
+        try {
+            for (int from = start; from < signingInput.length; from += step) {
+
+                int decoded = decode(signingInput, from, Math.min(from + step, signingInput.length), chunk, 0);
+                for (int off = 0; off < decoded; ) {
+
+                    if (filled == 0) ChunkTree.startChunk(digest, index);
+                    int take = Math.min(decoded - off, chunkSize - filled);
+                    digest.update(chunk, off, take);
+                    off += take;
+                    filled += take;
+
+                    if (filled == chunkSize) {
+
+                        digest.digest(chunkHashes, index++ * Merkle.NODE_SIZE, Merkle.NODE_SIZE);
+                        filled = 0;
+                    }
+                }
+            }
+            if (filled > 0) digest.digest(chunkHashes, index++ * Merkle.NODE_SIZE, Merkle.NODE_SIZE);
+
+            System.arraycopy(ChunkTree.root(digest, chunkHashes, index), 0, root, 0, Merkle.NODE_SIZE);
+
+        } catch (DigestException e) {
+
+            throw new JOSEException("Unable to hash payload", e);
+
+        } finally {
+
+            digest.reset();
+        }
+    }
+
+    /**
+     * folds a path array into root, decoding one node at a time
+     * @param digest SHA-256 digest to hash with
+     * @param chunk true for the ht_chunk_path array, whose nodes are chunk tree nodes (see {@link ChunkTree#nodeHash})
+     * @return number of folded nodes
+     * @throws JOSEException if the array or one of its nodes is malformed
+     */
+    private int foldPath(MessageDigest digest, boolean chunk) throws JOSEException {
+
+        expect('[');
+        if (consume(']')) return 0;
+
+        int count = 0;
+        do {
+            int start = string();
+            int end = pos - 1;
+            if (end - start > 44) throw new JOSEException("Invalid path node");
+
+            int n = decode(json, start, end, node, 0);
+            if (n == Merkle.NODE_SIZE + 1 && node[0] == (byte) '-') {
+
+                if (chunk) ChunkTree.nodeHash(digest, node, 1, root, 0, root, 0);
+                else Merkle.nodeHash(digest, node, 1, root, 0, root, 0);
+
+            } else if (n == Merkle.NODE_SIZE) {
+
+                if (chunk) ChunkTree.nodeHash(digest, root, 0, node, 0, root, 0);
+                else Merkle.nodeHash(digest, root, 0, node, 0, root, 0);
+
+            } else throw new JOSEException("Invalid path node");
+            count++;
+
+        } while (consume(','));
+        expect(']');
+        return count;
+    }
+
+    /**
+     * skips whitespace
+     */
+    private void skipWhitespace() {
+
+        while (pos < length && (json[pos] == ' ' || json[pos] == '\t' || json[pos] == '\n' || json[pos] == '\r')) pos++;
+    }
+
+    /**
+     * consumes a structural character if it is next
+     * @param c character
+     * @return true if it was consumed
+     */
+    private boolean consume(char c) {
+
+        skipWhitespace();
+        if (pos < length && json[pos] == c) {
+
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * consumes a structural character that has to be next
+     * @param c character
+     * @throws JOSEException if another character is next
+     */
+    private void expect(char c) throws JOSEException {
+
+        if (!consume(c)) throw new JOSEException("Malformed signature part, expected " + c);
+    }
+
+    /**
+     * consumes a string without escape sequences (Base64 values and field names do not need any)
+     * @return index of the first character of the string content, the content ends at pos - 1
+     * @throws JOSEException if no such string is next
+     */
+    private int string() throws JOSEException {
+
+        expect('"');
+        int start = pos;
+        while (pos < length && json[pos] != '"') {
+
+            if (json[pos] == '\\') throw new JOSEException("Unsupported escape sequence in signature part");
+            pos++;
+        }
+        if (pos == length) throw new JOSEException("Unterminated string in signature part");
+
+        pos++;
+        return start;
+    }
+
+    /**
+     * skips a value of an unknown field
+     * @throws JOSEException if the value is malformed
+     */
+    private void skipValue() throws JOSEException {
+
+        skipWhitespace();
+        if (pos == length) throw new JOSEException("Missing value in signature part");
+
+        switch (json[pos]) {
+            case '"' -> {
+                pos++;
+                while (pos < length && json[pos] != '"') pos += json[pos] == '\\' ? 2 : 1;
+                if (pos >= length) throw new JOSEException("Unterminated string in signature part");
+                pos++;
+            }
+            case '[', '{' -> {
+                int depth = 0;
+                do {
+                    byte c = json[pos];
+                    if (c == '"') {
+                        skipValue();
+                        continue;
+                    }
+                    if (c == '[' || c == '{') depth++;
+                    else if (c == ']' || c == '}') depth--;
+                    pos++;
+                } while (depth > 0 && pos < length);
+                if (depth > 0) throw new JOSEException("Unterminated value in signature part");
+            }
+            default -> {
+                // number, true, false or null
+                while (pos < length && json[pos] != ',' && json[pos] != '}' && json[pos] != ']') pos++;
+            }
+        }
+    }
+
+    /**
+     * decodes Base64 (URL-safe or standard, padding optional) from bytes
+     * @param src encoded characters
+     * @param from start index
+     * @param to end index
+     * @param dst buffer to decode into, needs room for (to - from) * 3 / 4 bytes
+     * @param off offset in dst
+     * @return number of decoded bytes
+     * @throws JOSEException if the input is not valid Base64
+     */
+    static int decode(byte[] src, int from, int to, byte[] dst, int off) throws JOSEException {
+
+        while (to > from && src[to - 1] == '=') to--;
+
+        int out = off, bits = 0, buffered = 0;
+        for (int i = from; i < to; i++) {
+
+            int c = src[i];
+            int v = c >= 0 && c < 128 ? DECODE[c] : -1;
+            if (v < 0) throw new JOSEException("Invalid Base64 character");
+
+            bits = (bits << 6) | v;
+            buffered += 6;
+            if (buffered >= 8) {
+
+                buffered -= 8;
+                dst[out++] = (byte) (bits >> buffered);
+            }
+        }
+        if (buffered >= 6) throw new JOSEException("Invalid Base64 length");
+
+        return out - off;
+    }
+
+    /**
+     * decodes Base64 (URL-safe or standard, padding optional) from characters
+     * @param src encoded characters
+     * @param from start index
+     * @param to end index
+     * @param dst buffer to decode into, needs room for (to - from) * 3 / 4 bytes
+     * @param off offset in dst
+     * @return number of decoded bytes
+     * @throws JOSEException if the input is not valid Base64
+     */
+    static int decode(CharSequence src, int from, int to, byte[] dst, int off) throws JOSEException {
+
+        while (to > from && src.charAt(to - 1) == '=') to--;
+
+        int out = off, bits = 0, buffered = 0;
+        for (int i = from; i < to; i++) {
+
+            char c = src.charAt(i);
+            int v = c < 128 ? DECODE[c] : -1;
+            if (v < 0) throw new JOSEException("Invalid Base64 character");
+
+            bits = (bits << 6) | v;
+            buffered += 6;
+            if (buffered >= 8) {
+
+                buffered -= 8;
+                dst[out++] = (byte) (bits >> buffered);
+            }
+        }
+        if (buffered >= 6) throw new JOSEException("Invalid Base64 length");
+
+        return out - off;
+    }
+}
@@ -0,0 +1,139 @@
+package htjsw;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.EdECKey;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * Signature algorithm of the root signature, determined by the type of the signing key.
+ * it makes up the prefix of the JWS algorithm identifier, followed by the hash token of {@link HashAlgorithm}
+ * @author F. Krause
+ */
+public enum SignatureAlgorithm {
+
+    /**
+     * ECDSA over SHA-256, prefix "HTES"
+     */
+    ECDSA("SHA256withECDSA", "EC", "HTES"),
+
+    /**
+     * Ed25519, deterministic and cheaper to sign and verify, prefix "HTED"
+     */
+    ED25519("Ed25519", "Ed25519", "HTED");
+
+    /**
+     * JCA name of the signature algorithm
+     */
+    private final String jcaName;
+
+    /**
+     * JCA name of the key algorithm, for KeyFactory
+     */
+    private final String keyAlgorithm;
+
+    /**
+     * prefix of the algorithm identifiers
+     */
+    private final String prefix;
+
+    /**
+     * Constructor
+     * @param jcaName JCA name of the signature algorithm
+     * @param keyAlgorithm JCA name of the key algorithm
+     * @param prefix prefix of the algorithm identifiers
+     */
+    SignatureAlgorithm(String jcaName, String keyAlgorithm, String prefix) {
+
+        this.jcaName = jcaName;
+        this.keyAlgorithm = keyAlgorithm;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Getter for the JCA name
+     * @return name to get a Signature with
+     */
+    public String getJCAName() {
+
+        return this.jcaName;
+    }
+
+    /**
+     * Getter for the key algorithm
+     * @return name to get a KeyFactory with
+     */
+    public String getKeyAlgorithm() {
+
+        return this.keyAlgorithm;
+    }
+
+    /**
+     * Getter for the prefix of the algorithm identifiers
+     * @return "HTES" or "HTED"
+     */
+    String getPrefix() {
+
+        return this.prefix;
+    }
+
+    /**
+     * creates a new signature instance
+     * @param provider JCA provider to take it from, null for the default provider
+     * @return uninitialised Signature Object
+     * @throws NoSuchAlgorithmException if the provider does not support this algorithm
+     */
+    Signature newSignature(@Nullable Provider provider) throws NoSuchAlgorithmException {
+
+        return provider == null ? Signature.getInstance(this.jcaName) : Signature.getInstance(this.jcaName, provider);
+    }
+
+    /**
+     * maps a JWS algorithm identifier to its signature algorithm
+     * @param alg algorithm identifier
+     * @return signature algorithm
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    public static SignatureAlgorithm fromAlgorithm(String alg) throws IllegalArgumentException {
+
+        for (SignatureAlgorithm signature : values()) if (alg.startsWith(signature.prefix)) return signature;
+
+        throw new IllegalArgumentException("Unsupported algorithm");
+    }
+
+    /**
+     * maps a public or private key to the algorithm it signs with
+     * @param key EC or Ed25519 key
+     * @return signature algorithm
+     * @throws InvalidKeyException if keys of this type are not supported
+     */
+    public static SignatureAlgorithm fromKey(Key key) throws InvalidKeyException {
+
+        if (key instanceof ECKey) return ECDSA;
+        if (key instanceof EdECKey edKey && ED25519.jcaName.equalsIgnoreCase(edKey.getParams().getName())) return ED25519;
+
+        throw new InvalidKeyException("Unsupported key type " + key.getAlgorithm());
+    }
+}
@@ -0,0 +1,94 @@
+package htjsw;
+
+import com.nimbusds.jose.util.Base64;
+import com.nimbusds.jose.util.Base64URL;
+import org.jetbrains.annotations.Nullable;
+
+/*
+ *    hashtreesig, a GUI for signing multiple Files using a Merkle Hash Tree and EC-SHA256
+ *    Copyright (C) 2022  F. Krause
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+/**
+ * signed hashtree that JWSs can be extracted from, see {@link HTJWSBuilder}
+ * @author F. Krause
+ */
+public interface SignedTree {
+
+    /**
+     * Getter for the JWS algorithm identifier
+     * @return algorithm of the signatures produced from this tree
+     */
+    String getAlgorithm();
+
+    /**
+     * Getter for the hash function of leaves and nodes
+     * @return hash function matching {@link #getAlgorithm()}
+     */
+    HashAlgorithm getHashAlgorithm();
+
+    /**
+     * Getter for signature
+     * @return root signature (ECDSA with SHA256 or Ed25519, see {@link #getAlgorithm()}) encoded as Base64 URL, null if not signed
+     */
+    @Nullable Base64URL getSignature();
+
+    /**
+     * Getter for Certificate
+     * @return X.509 certificate encoded in Base64, null if not initialised
+     */
+    @Nullable Base64 getCert();
+
+    /**
+     * Returns the order index, aka what turn it is added into the tree when inserting all the messages (starting at 0)
+     * @param msg message to search for
+     * @return order index of the given message in this tree, or -1 if it is not contained
+     */
+    int lookup(byte[] msg);
+
+    /**
+     * Getter for the Path to root along which a given message can be found's Neighbours in the Hashtree
+     * @param msg message to search for
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IllegalStateException if the tree is not signed
+     * @throws IllegalArgumentException if the message is not contained in the tree
+     */
+    String[] getPath(byte[] msg) throws IllegalStateException, IllegalArgumentException;
+
+    /**
+     * Returns the order index of an already hashed message
+     * @param digest leaf hash of the message, its plain hash or in chunked leaf mode its chunk tree root
+     * @return order index of the given message in this tree, or -1 if it is not contained
+     */
+    int lookupDigest(byte[] digest);
+
+    /**
+     * Getter for the Path of the message at a given order index
+     * @param position order index of the message
+     * @return Array of Base64-URL-Strings representing each hash, left siblings prefixed with "-"
+     * @throws IllegalStateException if the tree is not signed
+     * @throws IndexOutOfBoundsException if there is no message at this position
+     */
+    String[] getPath(int position) throws IllegalStateException, IndexOutOfBoundsException;
+
+    /**
+     * Getter for the chunk size of chunked leaf mode, see {@link Merkle#setChunkSize(int)}
+     * @return chunk size in bytes, 0 if messages are hashed as a whole
+     */
+    default int getChunkSize() {
+
+        return 0;
+    }
+}
@@ -3,17 +3,31 @@ package test;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.util.Base64URL;
 import htjsw.HTJSWVerifier;
 import htjsw.HTJWSBuilder;
+import htjsw.MappedMerkle;
 import htjsw.Merkle;
+import htjsw.MerkleForest;
+import htjsw.SignedTree;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ForkJoinPool;
 
 //@TODO test different size trees
 /*
@@ -43,6 +57,18 @@ public abstract class Test {
      */
     private static final int test_nr = 3;
 
+    /**
+     * number of failed behaviour checks
+     */
+    private static int failures = 0;
+
+    /**
+     * an action of a behaviour check that may throw
+     */
+    private interface Action {
+        void run() throws Exception;
+    }
+
     /**
      * runnable
      * @param args parameters
@@ -126,10 +152,6 @@ public abstract class Test {
             System.err.println("couldn't parse certificate (?)");
             e.printStackTrace();
 
-        } catch (Merkle.ConcatException e) {
-
-            System.err.println("Failed to Concat smt");
-            e.printStackTrace();
         } catch (CertificateException e) {
 
             System.err.println("Failed to verify Certificate validity or initiate it at all");
@@ -141,5 +163,467 @@ public abstract class Test {
         } catch (NullPointerException e) {
             e.printStackTrace();
         }
+
+        try {
+            checkBinary(keyFile, certFile);
+            checkTreeFields(keyFile, certFile);
+            checkUnpadded(keyFile, certFile);
+            checkSigPart(keyFile, certFile);
+            checkChunks(keyFile, certFile);
+
+        } catch (Exception e) {
+
+            check("checks ran through", false);
+            e.printStackTrace();
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * round trip through every version of the binary format, in memory and mapped from a file, and a truncated file
+     * @param keyFile signing key
+     * @param certFile signer certificate
+     * @throws Exception if a check cannot be set up
+     */
+    private static void checkBinary(File keyFile, File certFile) throws Exception {
+
+        for (boolean padded : new boolean[]{true, false}) {
+
+            Merkle merkle = signedTree(keyFile, certFile, padded, 0, 5);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            merkle.writeBinary(out);
+            byte[] binary = out.toByteArray();
+
+            for (int version = 1; version <= 3; version++) {
+
+                String name = "binary v" + version + (padded ? "" : " unpadded");
+                byte[] file = downgrade(binary, version);
+                Merkle copy = Merkle.fromBinary(new ByteArrayInputStream(file));
+                check(name + " round trip", samePaths(merkle, copy) && merkle.getAlgorithm().equals(copy.getAlgorithm()));
+                check(name + " copy signs", verifies(HTJWSBuilder.genJWS(copy, message(2))));
+
+                Path temp = Files.createTempFile("test-", ".htsb");
+                try {
+                    Files.write(temp, file);
+                    try (MappedMerkle mapped = new MappedMerkle(temp)) {
+
+                        check(name + " mapped", samePaths(merkle, mapped) && mapped.lookup(message(4)) == 4);
+                    }
+                } finally {
+
+                    Files.deleteIfExists(temp);
+                    Files.deleteIfExists(temp.resolveSibling(temp.getFileName() + ".idx"));
+                }
+            }
+
+            byte[] truncated = Arrays.copyOf(binary, binary.length - 1);
+            checkThrows("binary truncated", IOException.class, () -> Merkle.fromBinary(new ByteArrayInputStream(truncated)));
+
+            Path temp = Files.createTempFile("test-", ".htsb");
+            try {
+                Files.write(temp, truncated);
+                checkThrows("binary truncated mapped", IOException.class, () -> new MappedMerkle(temp).close());
+
+            } finally {
+
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(temp.resolveSibling(temp.getFileName() + ".idx"));
+            }
+
+            byte[] unknown = downgrade(binary, 9);
+            checkThrows("binary unknown version", IOException.class, () -> Merkle.fromBinary(new ByteArrayInputStream(unknown)));
+        }
+    }
+
+    /**
+     * round trip of the "top_path" of forest shards and the "chunk_size" of chunked trees through JSON and the binary format
+     * @param keyFile signing key
+     * @param certFile signer certificate
+     * @throws Exception if a check cannot be set up
+     */
+    private static void checkTreeFields(File keyFile, File certFile) throws Exception {
+
+        X509Certificate cert;
+        try (InputStream in = new FileInputStream(certFile)) {
+
+            cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+        MerkleForest forest = new MerkleForest(privateKey(keyFile, cert), cert, 2, true, ForkJoinPool.commonPool());
+        for (int i = 0; i < 5; i++) forest.add(message(i));
+        forest.closeAndSign();
+
+        Merkle shard = forest.getShards().get(1);
+        String json = shard.serialize();
+        Merkle copy = Merkle.fromJSON(json);
+        check("json top_path written", json.contains("\"top_path\""));
+        check("json top_path round trip", samePaths(shard, copy) && Arrays.equals(copy.getPath(0), forest.getPath(2)));
+        check("json top_path copy signs", verifies(HTJWSBuilder.genJWS(copy, message(2))));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        shard.writeBinary(out);
+        copy = Merkle.fromBinary(new ByteArrayInputStream(out.toByteArray()));
+        check("binary top_path round trip", samePaths(shard, copy) && verifies(HTJWSBuilder.genJWS(copy, message(3))));
+
+        Merkle chunked = signedTree(keyFile, certFile, true, Merkle.MIN_CHUNK_SIZE, 3);
+        json = chunked.serialize();
+        copy = Merkle.fromJSON(json);
+        check("json chunk_size written", json.contains("\"chunk_size\":" + Merkle.MIN_CHUNK_SIZE));
+        check("json chunk_size round trip", copy.getChunkSize() == Merkle.MIN_CHUNK_SIZE && samePaths(chunked, copy));
+        check("json chunk_size copy signs", verifies(HTJWSBuilder.genJWS(copy, message(1))));
+
+        out.reset();
+        chunked.writeBinary(out);
+        copy = Merkle.fromBinary(new ByteArrayInputStream(out.toByteArray()));
+        check("binary chunk_size round trip", copy.getChunkSize() == Merkle.MIN_CHUNK_SIZE && samePaths(chunked, copy));
+
+        json = signedTree(keyFile, certFile, true, 0, 3).serialize();
+        check("json plain tree without fields", !json.contains("top_path") && !json.contains("chunk_size"));
+    }
+
+    /**
+     * paths of unpadded trees of every size up to a few rows, and appending to a signed unpadded tree
+     * @param keyFile signing key
+     * @param certFile signer certificate
+     * @throws Exception if a check cannot be set up
+     */
+    private static void checkUnpadded(File keyFile, File certFile) throws Exception {
+
+        for (int count = 1; count <= 9; count++) {
+
+            Merkle merkle = signedTree(keyFile, certFile, false, 0, count);
+            String[][] all = merkle.getAllPaths();
+
+            // two leaves per message, lone nodes are promoted without a path entry, so no path is longer than the row count
+            int rows = 32 - Integer.numberOfLeadingZeros(2 * count - 1);
+            boolean ok = merkle.getAlgorithm().endsWith("U");
+            for (int i = 0; i < count; i++)
+                ok &= Arrays.equals(all[i], merkle.getPath(i)) && all[i].length <= rows && verifies(HTJWSBuilder.genJWS(merkle, message(i)));
+
+            // without padding, the last message of a tree that is not a power of two has lone nodes on its way up
+            if (Integer.bitCount(count) > 1) ok &= all[count - 1].length < rows;
+            check("unpadded paths of " + count + " messages", ok);
+        }
+
+        Merkle merkle = signedTree(keyFile, certFile, false, 0, 3);
+        JWSObject before = HTJWSBuilder.genJWS(merkle, message(0));
+        for (int i = 3; i < 7; i++) merkle.append(message(i));
+        check("append drops the signature", merkle.getSignature() == null && merkle.size() == 7);
+
+        merkle.resign();
+        boolean ok = verifies(before);
+        for (int i = 0; i < 7; i++) ok &= merkle.lookup(message(i)) == i && verifies(HTJWSBuilder.genJWS(merkle, message(i)));
+        check("append and resign", ok);
+
+        Merkle fresh = signedTree(keyFile, certFile, false, 0, 7);
+        boolean same = true;
+        for (int i = 0; i < 7; i++) same &= merkle.getPath(i).length == fresh.getPath(i).length;
+        check("append matches a tree built at once", same);
+
+        Merkle padded = signedTree(keyFile, certFile, true, 0, 3);
+        checkThrows("append to padded tree", IllegalStateException.class, () -> padded.append(message(3)));
+    }
+
+    /**
+     * edge cases of the signature part, which the verifier parses by hand: layout and unknown fields it has to accept,
+     * and malformed parts, trailing data and path nodes of the wrong length it has to reject
+     * @param keyFile signing key
+     * @param certFile signer certificate
+     * @throws Exception if a check cannot be set up
+     */
+    private static void checkSigPart(File keyFile, File certFile) throws Exception {
+
+        Merkle merkle = signedTree(keyFile, certFile, true, 0, 5);
+        JWSObject jws = HTJWSBuilder.genJWS(merkle, message(2));
+        String[] path = merkle.getPath(2);
+        String sig = merkle.getSignature().toString();
+
+        // the first path node is the salt leaf next to the message, a right sibling without marker
+        byte[] node = Base64URL.from(path[0]).decode();
+        String rest = path.length > 1 ? ",\"" + String.join("\",\"", Arrays.copyOfRange(path, 1, path.length)) + "\"" : "";
+        String valid = "{\"ht_path\":[\"" + path[0] + "\"" + rest + "],\"ecdsa_sig\":\"" + sig + "\"}";
+
+        check("sig part as built", withSigPart(jws, valid));
+        check("sig part with whitespace and fields reordered", withSigPart(jws,
+                "{\n  \"ecdsa_sig\" : \"" + sig + "\",\r\n\t\"ht_path\" : [ \"" + path[0] + "\"" + rest.replace(",", " , ") + " ]\n}"));
+        check("sig part with unknown fields", withSigPart(jws,
+                "{\"x\":\"a\\\"]}b\",\"y\":[1,{\"z\":[\"]\"]}],\"n\":-1.5e3,\"t\":true,\"u\":null," + valid.substring(1)));
+        check("sig part with standard Base64 node", withSigPart(jws,
+                valid.replace(path[0], Base64.getEncoder().encodeToString(node))));
+
+        check("sig part with trailing data rejected", !withSigPart(jws, valid + " x"));
+        check("sig part with second object rejected", !withSigPart(jws, valid + "{}"));
+        check("sig part unterminated rejected", !withSigPart(jws, valid.substring(0, valid.length() - 1)));
+        check("sig part without signature rejected", !withSigPart(jws, "{\"ht_path\":[\"" + path[0] + "\"" + rest + "]}"));
+        check("sig part without path rejected", !withSigPart(jws, "{\"ecdsa_sig\":\"" + sig + "\"}"));
+        check("sig part with chunk path rejected", !withSigPart(jws, "{\"ht_chunk_path\":[\"" + path[0] + "\"]," + valid.substring(1)));
+        check("sig part with escaped node rejected", !withSigPart(jws, valid.replace(path[0], "\\u0041" + path[0].substring(1))));
+        check("sig part with empty path rejected", !withSigPart(jws, valid.replace(path[0] + "\"" + rest, "")));
+
+        check("path node of 31 bytes rejected", !withSigPart(jws, valid.replace(path[0], Base64URL.encode(Arrays.copyOf(node, 31)).toString())));
+        check("path node of 33 bytes without marker rejected", !withSigPart(jws, valid.replace(path[0], Base64URL.encode(Arrays.copyOf(node, 33)).toString())));
+        node[0] ^= 1;
+        check("tampered path node rejected", !withSigPart(jws, valid.replace(path[0], Base64URL.encode(node).toString())));
+    }
+
+    /**
+     * proofs of single chunks of files signed in chunked leaf mode, from the tree and from its mapped binary file,
+     * and chunk JWSs with a tampered chunk index, payload or chunk path
+     * @param keyFile signing key
+     * @param certFile signer certificate
+     * @throws Exception if a check cannot be set up
+     */
+    private static void checkChunks(File keyFile, File certFile) throws Exception {
+
+        int chunkSize = Merkle.MIN_CHUNK_SIZE;
+        int[] sizes = {100, chunkSize, chunkSize * 3 + 5, chunkSize * 5};
+
+        Path dir = Files.createTempDirectory("test-");
+        Path[] files = new Path[sizes.length];
+        try {
+            Merkle merkle = new Merkle(keyFile, certFile);
+            merkle.setChunkSize(chunkSize);
+            for (int f = 0; f < sizes.length; f++) {
+
+                byte[] content = new byte[sizes[f]];
+                for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31 + f);
+                files[f] = Files.write(dir.resolve("file" + f), content);
+                merkle.add(files[f]);
+            }
+            merkle.closeAndSign();
+
+            boolean ok = true;
+            for (int f = 0; f < sizes.length; f++)
+                ok &= merkle.lookup(files[f]) == f && verifies(HTJWSBuilder.genJWS(merkle, Files.readAllBytes(files[f])));
+            check("chunked messages as a whole", ok);
+
+            Path tree = dir.resolve("tree.htsb");
+            merkle.writeBinary(tree);
+            try (MappedMerkle mapped = new MappedMerkle(tree)) {
+
+                for (int f = 2; f < sizes.length; f++) {
+
+                    int count = (sizes[f] + chunkSize - 1) / chunkSize;
+                    boolean proofs = true;
+                    for (int chunk = 0; chunk < count; chunk++)
+                        proofs &= verifies(HTJWSBuilder.genChunkJWS(merkle, files[f], chunk)) && verifies(HTJWSBuilder.genChunkJWS(mapped, files[f], chunk));
+                    check("chunk proofs of " + count + " chunks", proofs);
+                }
+            }
+
+            checkThrows("chunk proof of a missing chunk", IndexOutOfBoundsException.class, () -> HTJWSBuilder.genChunkJWS(merkle, files[2], 4));
+            checkThrows("chunk proof of a single chunk file", IllegalArgumentException.class, () -> HTJWSBuilder.genChunkJWS(merkle, files[1], 0));
+
+            JWSObject jws = HTJWSBuilder.genChunkJWS(merkle, files[3], 1);
+            String[] parts = jws.serialize().split("\\.");
+            String header = Base64URL.from(parts[0]).decodeToString();
+            String sigPart = Base64URL.from(parts[2]).decodeToString();
+            check("chunk proof parts as built", verifiesParts(parts[0], parts[1], parts[2]) && withSigPart(jws, sigPart));
+
+            for (String index : new String[]{"0", "2", "-1"}) {
+
+                String tampered = header.replaceFirst("\"ht_chunk_index\":1(?=[,}])", "\"ht_chunk_index\":" + index);
+                check("chunk index " + index + " instead of 1 rejected", !tampered.equals(header) && !verifiesParts(Base64URL.encode(tampered).toString(), parts[1], parts[2]));
+            }
+            String whole = header.replaceFirst(",?\"ht_chunk_index\":1(?=[,}])", "").replace("{,", "{");
+            check("chunk without index rejected", !whole.equals(header) && !verifiesParts(Base64URL.encode(whole).toString(), parts[1], parts[2]));
+
+            byte[] chunk = Base64URL.from(parts[1]).decode();
+            chunk[7] ^= 1;
+            check("tampered chunk rejected", !verifiesParts(parts[0], Base64URL.encode(chunk).toString(), parts[2]));
+            check("chunk longer than the chunk size rejected",
+                    !verifiesParts(parts[0], Base64URL.encode(Arrays.copyOf(Base64URL.from(parts[1]).decode(), chunkSize + 1)).toString(), parts[2]));
+
+            String withoutChunkPath = sigPart.replaceFirst("\"ht_chunk_path\":\\[[^]]*],?", "");
+            check("chunk without chunk path rejected", !withoutChunkPath.equals(sigPart) && !withSigPart(jws, withoutChunkPath));
+            String emptyChunkPath = sigPart.replaceFirst("\"ht_chunk_path\":\\[[^]]*]", "\"ht_chunk_path\":[]");
+            check("chunk with empty chunk path rejected", !emptyChunkPath.equals(sigPart) && !withSigPart(jws, emptyChunkPath));
+
+        } finally {
+
+            try (var paths = Files.list(dir)) {
+
+                for (Path file : paths.toList()) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * verifies a JWS given by its Base64URL encoded parts
+     * @param header encoded header
+     * @param payload encoded payload
+     * @param sigPart encoded signature part
+     * @return true if the signature verifies
+     */
+    private static boolean verifiesParts(String header, String payload, String sigPart) {
+
+        try {
+            return JWSObject.parse(header + "." + payload + "." + sigPart).verify(new HTJSWVerifier());
+
+        } catch (ParseException | JOSEException e) {
+
+            return false;
+        }
+    }
+
+    /**
+     * replaces the signature part of a JWS and verifies it
+     * @param jws JSON Web Signature
+     * @param sigPart JSON of the new signature part
+     * @return true if the signature verifies
+     */
+    private static boolean withSigPart(JWSObject jws, String sigPart) {
+
+        String[] parts = jws.serialize().split("\\.");
+        return verifiesParts(parts[0], parts[1], Base64URL.encode(sigPart).toString());
+    }
+
+    /**
+     * reads a PKCS#8 encoded private key of the type the certificate holds
+     * @param keyFile DER encoded key
+     * @param cert certificate of the key
+     * @return private key
+     * @throws IOException if the file cannot be read
+     * @throws GeneralSecurityException if the key cannot be parsed
+     */
+    private static PrivateKey privateKey(File keyFile, X509Certificate cert) throws IOException, GeneralSecurityException {
+
+        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(Files.readAllBytes(keyFile.toPath()));
+        return KeyFactory.getInstance(cert.getPublicKey().getAlgorithm()).generatePrivate(spec);
+    }
+
+    /**
+     * rewrites a tree in the current binary format as an older (or unknown) version,
+     * dropping the fields the older version does not have
+     * @param binary tree in the current format without top path or chunk size
+     * @param version format version to write
+     * @return rewritten tree
+     * @throws IOException if the tree is malformed
+     */
+    private static byte[] downgrade(byte[] binary, int version) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(binary));
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+
+        out.write(in.readNBytes(4));
+        in.readUnsignedByte();
+        out.writeByte(version);
+        out.writeUTF(in.readUTF());
+
+        // signature and certificate
+        for (int field = 0; field < 2; field++) {
+
+            byte[] content = in.readNBytes(in.readInt());
+            out.writeInt(content.length);
+            out.write(content);
+        }
+        out.writeInt(in.readInt());
+        out.writeInt(in.readInt());
+
+        int top = in.readInt();
+        byte[] topPath = in.readNBytes(top * 33);
+        if (version >= 2) {
+
+            out.writeInt(top);
+            out.write(topPath);
+        }
+        int chunkSize = in.readInt();
+        if (version >= 3) out.writeInt(chunkSize);
+
+        out.write(in.readAllBytes());
+        return buf.toByteArray();
+    }
+
+    /**
+     * builds and signs a tree over the first messages of {@link #message(int)}
+     * @param keyFile signing key
+     * @param certFile signer certificate
+     * @param padded shape of the tree
+     * @param chunkSize chunk size, 0 to hash messages as a whole
+     * @param count number of messages
+     * @return signed tree
+     * @throws NoSuchAlgorithmException if the algorithms are not supported
+     */
+    private static Merkle signedTree(File keyFile, File certFile, boolean padded, int chunkSize, int count) throws NoSuchAlgorithmException {
+
+        Merkle merkle = new Merkle(keyFile, certFile);
+        merkle.setPadded(padded);
+        merkle.setChunkSize(chunkSize);
+        for (int i = 0; i < count; i++) merkle.add(message(i));
+        merkle.closeAndSign();
+
+        return merkle;
+    }
+
+    /**
+     * test message
+     * @param i number of the message
+     * @return message bytes
+     */
+    private static byte[] message(int i) {
+
+        return ("Hallo, ich bin Nachricht Nr. " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * compares two signed trees by their signature and the path of every message
+     * @param expected original tree
+     * @param actual copy
+     * @return true if both hold the same signature and paths
+     */
+    private static boolean samePaths(Merkle expected, SignedTree actual) {
+
+        if (!String.valueOf(expected.getSignature()).equals(String.valueOf(actual.getSignature()))) return false;
+        for (int i = 0; i < expected.size(); i++) if (!Arrays.equals(expected.getPath(i), actual.getPath(i))) return false;
+
+        return true;
+    }
+
+    /**
+     * verifies a JWS after a round trip through its compact serialization
+     * @param jws JSON Web Signature
+     * @return true if the signature verifies
+     */
+    private static boolean verifies(JWSObject jws) {
+
+        try {
+            return JWSObject.parse(jws.serialize()).verify(new HTJSWVerifier());
+
+        } catch (ParseException | JOSEException e) {
+
+            return false;
+        }
+    }
+
+    /**
+     * prints the outcome of a behaviour check and counts failures
+     * @param name name of the check
+     * @param ok outcome
+     */
+    private static void check(String name, boolean ok) {
+
+        System.out.println((ok ? "ok      " : "FAILED  ") + name);
+        if (!ok) failures++;
+    }
+
+    /**
+     * checks that an action is rejected with an exception of the given type
+     * @param name name of the check
+     * @param type expected exception type
+     * @param action action to run
+     */
+    private static void checkThrows(String name, Class<? extends Exception> type, Action action) {
+
+        try {
+            action.run();
+            check(name + " rejected", false);
+
+        } catch (Exception e) {
+
+            check(name + " rejected", type.isInstance(e));
+        }
     }
 }